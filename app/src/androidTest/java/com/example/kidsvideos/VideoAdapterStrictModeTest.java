@@ -0,0 +1,138 @@
+package com.example.kidsvideos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.StrictMode;
+import android.os.strictmode.DiskReadViolation;
+import android.os.strictmode.Violation;
+import android.view.View;
+
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SdkSuppress;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binding a row must stay on memory: no disk access and no cache key hashing on the main
+ * thread. Rows are bound on a device, where StrictMode sees real disk access, under a policy
+ * that detects everything and collects violations instead of logging them.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 28) // penaltyListener needs API 28
+public class VideoAdapterStrictModeTest {
+    private static final int VIDEO_COUNT = 40;
+
+    private final List<Violation> violations = new ArrayList<>();
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // Created before any row is bound, as MainActivity does; creating them touches the disk
+        ThumbnailCache.getInstance(context);
+        PositionStore.getInstance(context);
+    }
+
+    @Test
+    public void bindingScannedRowsCausesNoViolations() {
+        LibraryStore videos = library();
+        videos.prepareCacheKeys(); // As the scanner does before publishing
+        RecyclerView recycler = onMain(() -> layOut(newRecycler(adapterFor(videos))));
+
+        assertTrue("No rows were bound", recycler.getChildCount() > 0);
+        assertEquals("StrictMode violations while binding: " + violations, 0, violations.size());
+    }
+
+    @Test
+    public void refreshingWatchedProgressCausesNoViolations() {
+        LibraryStore videos = library();
+        videos.prepareCacheKeys();
+        VideoAdapter adapter = adapterFor(videos);
+        RecyclerView recycler = onMain(() -> layOut(newRecycler(adapter)));
+        violations.clear();
+
+        onMain(() -> {
+            PositionStore.getInstance(context).record(videos.get(0).location, 30000, 60000);
+            adapter.refreshWatchedProgress(); // Rebinds through the payload path
+            return layOut(recycler);
+        });
+
+        assertEquals("StrictMode violations while rebinding: " + violations, 0, violations.size());
+    }
+
+    @Test
+    public void diskReadWhileBindingIsCaught() {
+        VideoAdapter adapter = adapterFor(library());
+
+        onMain(() -> {
+            adapter.runUnderBindPolicy(() -> new File(context.getFilesDir(), "bind_probe").exists());
+            return null;
+        });
+
+        assertTrue("A disk read under the bind policy went unreported",
+                !violations.isEmpty() && violations.get(0) instanceof DiskReadViolation);
+    }
+
+    @Test
+    public void hashingWhileBindingIsCaught() {
+        // Keys left for binding to compute are exactly what the policy exists to catch
+        RecyclerView recycler = onMain(() -> layOut(newRecycler(adapterFor(library()))));
+
+        assertTrue("No rows were bound", recycler.getChildCount() > 0);
+        assertTrue("Hashing on the main thread went unreported", !violations.isEmpty());
+    }
+
+    private static LibraryStore library() {
+        LibraryStore videos = new LibraryStore();
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            videos.add("/sdcard/Movies/episode" + i + ".mp4", "Episode " + i, "video/mp4",
+                    1024L * 1024 * (i + 1), 1700000000000L + i * 1000L, VideoEntry.DURATION_NOT_LOADED);
+        }
+        return videos;
+    }
+
+    private VideoAdapter adapterFor(LibraryStore videos) {
+        VideoAdapter adapter = new VideoAdapter(videos, video -> { });
+        adapter.setBindPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectAll()
+                .penaltyListener(Runnable::run, violations::add)
+                .build());
+        return adapter;
+    }
+
+    private RecyclerView newRecycler(VideoAdapter adapter) {
+        RecyclerView recycler = new RecyclerView(context);
+        recycler.setLayoutManager(new GridLayoutManager(context, 2));
+        recycler.setAdapter(adapter);
+        return recycler;
+    }
+
+    private static RecyclerView layOut(RecyclerView recycler) {
+        recycler.measure(View.MeasureSpec.makeMeasureSpec(1080, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(1920, View.MeasureSpec.EXACTLY));
+        recycler.layout(0, 0, 1080, 1920);
+        return recycler;
+    }
+
+    private interface MainThreadWork<T> {
+        T run();
+    }
+
+    // Views are bound and laid out on the main thread, as in the app
+    private static <T> T onMain(MainThreadWork<T> work) {
+        List<T> result = new ArrayList<>(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> result.add(work.run()));
+        return result.get(0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.kidsvideos;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds mutable bitmaps no view draws any more: thumbnails evicted from memory once
+ * every row showing them let go, and precached thumbnails that were only encoded.
+ * The next decode of the same size writes into one of them through inBitmap instead
+ * of allocating. Bitmaps are matched by exact width, height and config, which is
+ * what BitmapFactory requires before API 19 and is always true for thumbnails.
+ */
+class BitmapPool {
+    private final int maxSizeBytes;
+    private final Map<Long, ArrayDeque<Bitmap>> pool = new HashMap<>();
+    private int currentSizeBytes;
+    private int reuseCount;
+    private int missCount;
+
+    BitmapPool(int maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    // Returns a reusable bitmap of the given shape, or null if none is pooled
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = pool.get(key(width, height, config));
+        Bitmap bitmap = bitmaps != null ? bitmaps.pollLast() : null;
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        currentSizeBytes -= bitmap.getByteCount();
+        reuseCount++;
+        return bitmap;
+    }
+
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return;
+        }
+        int size = bitmap.getByteCount();
+        if (currentSizeBytes + size > maxSizeBytes) {
+            return; // Pool is full, let the GC have it
+        }
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = pool.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            pool.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        currentSizeBytes += size;
+    }
+
+    synchronized void clear() {
+        pool.clear();
+        currentSizeBytes = 0;
+    }
+
+    synchronized int getReuseCount() {
+        return reuseCount;
+    }
+
+    synchronized int getMissCount() {
+        return missCount;
+    }
+
+    synchronized int getSizeBytes() {
+        return currentSizeBytes;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 40) | ((long) height << 16) | config.ordinal();
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache keys derived from a video's contents rather than its location, so the same episode in
+ * two folders, a renamed file, or a folder re-added through a new tree URI shares one thumbnail
+ * and metadata entry.
+ *
+ * A fingerprint is an MD5 of the file size and its first and last few KB, read through a single
+ * file descriptor. Fingerprints are remembered by location together with the size and
+ * modification time they were computed for, and only recomputed when either changes.
+ */
+final class FingerprintIndex {
+    private static final String TAG = "FingerprintIndex";
+    private static final int MAGIC = 0x4b564650; // "KVFP"
+    private static final int VERSION = 1;
+    private static final int CHUNK_BYTES = 8 * 1024; // Read from each end of the file
+
+    private final File file;
+    private final ConcurrentHashMap<String, Fingerprint> entries = new ConcurrentHashMap<>();
+    private boolean loaded; // Guarded by this
+    private volatile boolean dirty;
+
+    private static final class Fingerprint {
+        final long sizeBytes;
+        final long lastModified;
+        final String key;
+
+        Fingerprint(long sizeBytes, long lastModified, String key) {
+            this.sizeBytes = sizeBytes;
+            this.lastModified = lastModified;
+            this.key = key;
+        }
+    }
+
+    FingerprintIndex(File directory, String name) {
+        file = new File(directory, name + ".bin");
+    }
+
+    // Background threads only: the video's fingerprint key, or null if it couldn't be read
+    String keyFor(Context context, VideoEntry video) {
+        String known = knownKeyFor(video);
+        if (known != null) {
+            return known;
+        }
+        String key = computeKey(context, video);
+        if (key != null) {
+            entries.put(video.location, new Fingerprint(video.sizeBytes, video.lastModified, key));
+            dirty = true;
+        }
+        return key;
+    }
+
+    // Background threads only: the fingerprint remembered for the video, without reading it; null
+    // if it was never computed or the file changed since
+    String knownKeyFor(VideoEntry video) {
+        ensureLoaded();
+        Fingerprint known = entries.get(video.location);
+        if (known != null && known.sizeBytes == video.sizeBytes && known.lastModified == video.lastModified) {
+            return known.key;
+        }
+        return null;
+    }
+
+    // Writes the fingerprints of the given videos, dropping locations that are no longer scanned
+    void save(List<VideoEntry> videos) {
+        ensureLoaded();
+        if (!dirty && entries.size() == videos.size()) {
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        int written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (VideoEntry video : videos) {
+                Fingerprint fingerprint = entries.get(video.location);
+                if (fingerprint == null) {
+                    continue;
+                }
+                out.writeUTF(video.location);
+                out.writeLong(fingerprint.sizeBytes);
+                out.writeLong(fingerprint.lastModified);
+                out.writeUTF(fingerprint.key);
+                written++;
+            }
+            out.writeUTF(""); // End marker
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write fingerprints", e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not replace " + file.getName());
+            tempFile.delete();
+            return;
+        }
+        dirty = false;
+        Log.d(TAG, "Saved " + written + " fingerprints");
+    }
+
+    private synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            String location;
+            while (!(location = in.readUTF()).isEmpty()) {
+                entries.put(location, new Fingerprint(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Fingerprints unreadable, recomputing", e);
+        }
+    }
+
+    private static String computeKey(Context context, VideoEntry video) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = video.isContentUri()
+                    ? context.getContentResolver().openFileDescriptor(video.toUri(), "r")
+                    : ParcelFileDescriptor.open(new File(video.location), ParcelFileDescriptor.MODE_READ_ONLY);
+            if (descriptor == null) {
+                return null;
+            }
+            // The stream doesn't own the descriptor, closing the descriptor below releases both
+            FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+            long size = channel.size();
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            buffer.putLong(size).flip();
+            md.update(buffer);
+            digestRange(channel, 0, buffer, md);
+            if (size > CHUNK_BYTES) {
+                digestRange(channel, Math.max(CHUNK_BYTES, size - CHUNK_BYTES), buffer, md);
+            }
+            return VideoEntry.toHex(md.digest());
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            Log.w(TAG, "Could not fingerprint " + video.displayName, e);
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Positional reads, so both ends come from the one descriptor without seeking a stream
+    private static void digestRange(FileChannel channel, long position, ByteBuffer buffer, MessageDigest md)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        md.update(buffer);
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.kidsvideos;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+
+/**
+ * Hands results from background threads to the main thread in batches, once per display frame.
+ *
+ * Deliveries are queued and drained together from a Choreographer frame callback instead of
+ * each posting its own message, and a drain stops after a small time budget so a burst of
+ * results can't stall a frame. Targets are held weakly, so a queued delivery never keeps a
+ * destroyed Activity or its views alive. Nothing is drained while no Activity that shows
+ * results is started; deliveries wait until one is.
+ */
+final class FrameDispatcher implements Choreographer.FrameCallback {
+    private static final long FRAME_BUDGET_NANOS = 4000000; // Leave most of the frame for drawing
+
+    private static FrameDispatcher instance;
+
+    // Must not capture the target, it is handed in only while still reachable
+    interface Delivery<T> {
+        void deliver(T target);
+    }
+
+    private static final class Pending<T> {
+        final WeakReference<T> target;
+        final Delivery<T> delivery;
+
+        Pending(T target, Delivery<T> delivery) {
+            this.target = new WeakReference<>(target);
+            this.delivery = delivery;
+        }
+
+        void run() {
+            T resolved = target.get();
+            if (resolved != null) {
+                delivery.deliver(resolved);
+            }
+        }
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Pending<?>> queue = new ArrayDeque<>(); // Guarded by itself
+    private boolean scheduled; // A frame callback is requested or waiting for a start, guarded by queue
+    private int startedOwners; // Main thread only
+
+    static synchronized FrameDispatcher getInstance() {
+        if (instance == null) {
+            instance = new FrameDispatcher();
+        }
+        return instance;
+    }
+
+    private FrameDispatcher() {
+    }
+
+    // Any thread. The first delivery of a batch costs one message; the rest ride along with it.
+    <T> void post(T target, Delivery<T> delivery) {
+        if (target == null) {
+            return;
+        }
+        synchronized (queue) {
+            queue.add(new Pending<>(target, delivery));
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        mainHandler.post(this::requestFrame);
+    }
+
+    // Main thread: an Activity showing results became visible
+    void onOwnerStarted() {
+        startedOwners++;
+        boolean waiting;
+        synchronized (queue) {
+            waiting = scheduled;
+        }
+        if (waiting && startedOwners == 1) {
+            requestFrame();
+        }
+    }
+
+    // Main thread: the Activity is no longer visible, hold deliveries until one is
+    void onOwnerStopped() {
+        startedOwners = Math.max(0, startedOwners - 1);
+        if (startedOwners == 0) {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    private void requestFrame() {
+        if (startedOwners > 0) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long start = System.nanoTime();
+        while (true) {
+            Pending<?> next;
+            synchronized (queue) {
+                next = queue.poll();
+                if (next == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            next.run();
+            if (System.nanoTime() - start > FRAME_BUDGET_NANOS) {
+                break; // The rest go out next frame
+            }
+        }
+        requestFrame();
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.kidsvideos;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Low-resolution frames taken at even intervals through a video, laid out row by row in one
+ * bitmap. Scrubbing shows the frame nearest the thumb from here instead of seeking the decoder.
+ *
+ * Frame i is taken from the middle of the i-th of COLUMNS x ROWS equal slices of the video, and
+ * every frame is TILE_WIDTH wide, so the layout can be recovered from the bitmap alone.
+ */
+public final class FrameSheet {
+    static final int COLUMNS = 5;
+    static final int ROWS = 5;
+    static final int TILE_WIDTH = 160;
+
+    final Bitmap bitmap;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    FrameSheet(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.tileWidth = bitmap.getWidth() / COLUMNS;
+        this.tileHeight = bitmap.getHeight() / ROWS;
+    }
+
+    static int frameCount() {
+        return COLUMNS * ROWS;
+    }
+
+    // Time of frame index, in microseconds as MediaMetadataRetriever takes it
+    static long frameTimeUs(int index, long durationMs) {
+        return (2L * index + 1) * durationMs * 1000 / (2L * frameCount());
+    }
+
+    // The frame whose slice of the video contains positionMs
+    static int frameIndexAt(long positionMs, long durationMs) {
+        if (durationMs <= 0) {
+            return 0;
+        }
+        int index = (int) (positionMs * frameCount() / durationMs);
+        return Math.max(0, Math.min(frameCount() - 1, index));
+    }
+
+    void frameBounds(int index, Rect out) {
+        int left = (index % COLUMNS) * tileWidth;
+        int top = (index / COLUMNS) * tileHeight;
+        out.set(left, top, left + tileWidth, top + tileHeight);
+    }
+
+    int getTileWidth() {
+        return tileWidth;
+    }
+
+    int getTileHeight() {
+        return tileHeight;
+    }
+}
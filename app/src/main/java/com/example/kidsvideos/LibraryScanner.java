@@ -0,0 +1,527 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.content.UriPermission;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scans video folders on a background thread and streams what it finds to the main thread.
+ *
+ * Folders are walked recursively down to a fixed depth, so videos kept in per-show and
+ * per-season subfolders are found. Every folder is a fork-join task: subfolders of all roots
+ * are listed in parallel on a work-stealing pool, each folder sorts only its own videos, and
+ * the sorted lists are combined with a k-way merge on the way back up.
+ *
+ * Results arrive as batches while the scan runs, then once more as a complete sorted snapshot,
+ * which {@link #diff} compares with what the grid shows on the same background thread.
+ * Starting a new scan cancels the previous one; nothing from a cancelled scan is delivered.
+ * Each completed scan is saved as a {@link LibrarySnapshot} that {@link #restore} can show on
+ * the next launch while the folders are scanned again.
+ */
+class LibraryScanner {
+    private static final String TAG = "LibraryScanner";
+    private static final String SNAPSHOT_NAME = "library.snapshot";
+    private static final String FINGERPRINTS_NAME = "fingerprints";
+
+    interface Listener {
+        // Videos found in one folder, sorted
+        void onBatch(List<VideoEntry> videos);
+
+        void onComplete(Result result);
+    }
+
+    interface DiffListener {
+        void onDiffed(DiffUtil.DiffResult diff);
+    }
+
+    interface RestoreListener {
+        // The saved library, or null if there is none for these folders
+        void onRestored(LibraryStore videos);
+    }
+
+    static final class Result {
+        final LibraryStore videos; // Everything found, sorted
+        final List<String> inaccessibleUris; // Selected folders whose permission is gone or URI is invalid
+        final List<String> unreadableUris; // Selected folders that failed to list this time, still selected
+        final File folder; // The local folder that was listed, null for SAF scans
+
+        Result(LibraryStore videos, List<String> inaccessibleUris, List<String> unreadableUris, File folder) {
+            this.videos = videos;
+            this.inaccessibleUris = inaccessibleUris;
+            this.unreadableUris = unreadableUris;
+            this.folder = folder;
+        }
+    }
+
+    private final Context context;
+    private final File snapshotFile;
+    private final int maxDepth;
+    private final FingerprintIndex fingerprints; // Null when cache keys come from the location
+    private final MediaWorkEngine.Scope scope; // Everything this scanner queued, dropped on shutdown
+    private final Executor executor; // Scans and snapshot writes, one at a time in order
+    private final ForkJoinPool folderPool; // Shared with other screens, never shut down here
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Scan currentScan;
+    // What the last scan or restore covered, so the library can be saved again with durations
+    private volatile int snapshotKind;
+    private volatile List<String> snapshotSources;
+
+    // maxDepth is how many levels of subfolders below each root are listed, 0 for the root only.
+    // With fingerprintKeys, identical videos found at different locations share cache entries.
+    LibraryScanner(Context context, int maxDepth, boolean fingerprintKeys) {
+        this.context = context.getApplicationContext();
+        this.maxDepth = maxDepth;
+        this.snapshotFile = new File(context.getCacheDir(), SNAPSHOT_NAME);
+        this.fingerprints = fingerprintKeys ? new FingerprintIndex(context.getCacheDir(), FINGERPRINTS_NAME) : null;
+        MediaWorkEngine engine = MediaWorkEngine.getInstance(context);
+        this.scope = engine.newScope();
+        // The grid is waiting on a scan, so it goes ahead of cache maintenance on the I/O lane
+        this.executor = scope.serial(engine.io(), ThumbnailCache.PRIORITY_VISIBLE);
+        this.folderPool = engine.listing();
+    }
+
+    // Loads the snapshot saved by the last scan of the same folders, null treeUris meaning the
+    // fallback common folder
+    void restore(final Collection<String> treeUris, final RestoreListener listener) {
+        final List<String> uris = treeUris != null ? new ArrayList<>(treeUris) : null;
+        start(new Scan(null, null) {
+            @Override
+            void scan() {
+                final LibraryStore videos = uris != null
+                        ? LibrarySnapshot.read(snapshotFile, LibrarySnapshot.KIND_TREES, uris)
+                        : LibrarySnapshot.read(snapshotFile, LibrarySnapshot.KIND_LOCAL, Collections.<String>emptyList());
+                if (videos != null) {
+                    videos.prepareCacheKeys();
+                    snapshotKind = uris != null ? LibrarySnapshot.KIND_TREES : LibrarySnapshot.KIND_LOCAL;
+                    snapshotSources = uris != null ? uris : Collections.<String>emptyList();
+                    Log.d(TAG, "Restored " + videos.size() + " videos in " + (System.currentTimeMillis() - startTime) + "ms");
+                }
+                post(() -> {
+                    if (currentScan == this) {
+                        currentScan = null;
+                    }
+                    listener.onRestored(videos);
+                });
+            }
+        });
+    }
+
+    // Sorts a finished scan's videos and compares them with shown, a copy nothing else changes,
+    // off the main thread. Dropped like any scan if another one starts first.
+    void diff(final LibraryStore shown, final LibraryStore scanned, final boolean newestFirst,
+              final DiffListener listener) {
+        start(new Scan(null, null) {
+            @Override
+            void scan() {
+                scanned.sort(newestFirst); // The sort order may have changed mid scan
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                    @Override
+                    public int getOldListSize() {
+                        return shown.size();
+                    }
+
+                    @Override
+                    public int getNewListSize() {
+                        return scanned.size();
+                    }
+
+                    @Override
+                    public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                        return shown.isSameLocation(oldPosition, scanned, newPosition);
+                    }
+
+                    @Override
+                    public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                        return shown.isSameContents(oldPosition, scanned, newPosition);
+                    }
+                });
+                Log.d(TAG, "Diffed " + scanned.size() + " videos in " + (System.currentTimeMillis() - startTime) + "ms");
+                post(() -> {
+                    if (currentScan == this) {
+                        currentScan = null;
+                    }
+                    listener.onDiffed(diff);
+                });
+            }
+        });
+    }
+
+    // Lists each selected SAF tree
+    void scanTrees(Collection<String> treeUris, Comparator<VideoEntry> order, Listener listener) {
+        final List<String> uris = new ArrayList<>(treeUris);
+        start(new Scan(order, listener) {
+            @Override
+            void scan() {
+                List<String> inaccessible = new ArrayList<>();
+                List<String> unreadable = new ArrayList<>();
+                List<String> rootUris = new ArrayList<>();
+                List<TreeFolderTask> roots = new ArrayList<>();
+                for (String uriString : uris) {
+                    try {
+                        Uri uri = Uri.parse(uriString);
+                        if (hasPersistedPermission(uri)) {
+                            // All roots run at once, their subfolders are spread over the pool
+                            TreeFolderTask root = new TreeFolderTask(this, uri, DocumentsContract.getTreeDocumentId(uri), 0);
+                            folderPool.execute(root);
+                            roots.add(root);
+                            rootUris.add(uriString);
+                        } else {
+                            inaccessible.add(uriString);
+                        }
+                    } catch (Exception e) {
+                        // Invalid URI
+                        Log.w(TAG, "Skipping folder " + uriString, e);
+                        inaccessible.add(uriString);
+                    }
+                }
+
+                List<String> scanned = new ArrayList<>();
+                List<List<VideoEntry>> sortedLists = new ArrayList<>();
+                for (int i = 0; i < roots.size(); i++) {
+                    TreeFolderTask root = roots.get(i);
+                    sortedLists.add(root.join());
+                    if (root.listed) {
+                        scanned.add(rootUris.get(i));
+                    } else {
+                        // The permission is still held, so the provider or card may just be
+                        // unavailable for now
+                        unreadable.add(rootUris.get(i));
+                    }
+                }
+                finish(LibrarySnapshot.KIND_TREES, scanned, merge(sortedLists, order), inaccessible, unreadable, null);
+            }
+        });
+    }
+
+    // Lists the first readable folder among the candidates
+    void scanFirstReadable(final File[] candidates, Comparator<VideoEntry> order, Listener listener) {
+        start(new Scan(order, listener) {
+            @Override
+            void scan() {
+                File folder = null;
+                for (File candidate : candidates) {
+                    if (candidate != null && candidate.exists() && candidate.canRead()) {
+                        folder = candidate;
+                        break;
+                    }
+                }
+                List<VideoEntry> videos = folder != null
+                        ? folderPool.invoke(new LocalFolderTask(this, folder, 0)) : new ArrayList<VideoEntry>();
+                List<String> sources = folder != null
+                        ? Collections.singletonList(folder.getAbsolutePath()) : Collections.<String>emptyList();
+                finish(LibrarySnapshot.KIND_LOCAL, sources, videos, Collections.<String>emptyList(),
+                        Collections.<String>emptyList(), folder);
+            }
+        });
+    }
+
+    // Stops delivering results from the running scan
+    void cancel() {
+        if (currentScan != null) {
+            currentScan.cancelled = true;
+            currentScan = null;
+        }
+    }
+
+    // Saves the library again, picking up durations loaded since the last scan
+    void saveSnapshot(LibraryStore videos) {
+        final List<String> sources = snapshotSources;
+        final int kind = snapshotKind;
+        if (sources == null || currentScan != null) {
+            return; // Nothing scanned yet, or a scan is running and will save its own result
+        }
+        // Rows are only appended while scanning, so the finished store can be read from here
+        executor.execute(() -> LibrarySnapshot.write(snapshotFile, kind, sources, videos));
+    }
+
+    // Forgets the saved library, e.g. after the folders are cleared
+    void clearSnapshot() {
+        snapshotSources = null;
+        executor.execute(() -> LibrarySnapshot.delete(snapshotFile));
+    }
+
+    void shutdown() {
+        cancel();
+        scope.cancel();
+    }
+
+    private void start(Scan scan) {
+        cancel();
+        currentScan = scan;
+        executor.execute(scan);
+    }
+
+    // Only a missing grant means the folder is gone for good; a failed query may be temporary
+    private boolean hasPersistedPermission(Uri uri) {
+        for (UriPermission permission : context.getContentResolver().getPersistedUriPermissions()) {
+            if (permission.isReadPermission() && permission.getUri().equals(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Merges lists that are each sorted by order into one sorted list
+    static List<VideoEntry> merge(List<List<VideoEntry>> sortedLists, final Comparator<VideoEntry> order) {
+        int total = 0;
+        List<List<VideoEntry>> nonEmpty = new ArrayList<>(sortedLists.size());
+        for (List<VideoEntry> list : sortedLists) {
+            if (!list.isEmpty()) {
+                nonEmpty.add(list);
+                total += list.size();
+            }
+        }
+        if (nonEmpty.size() == 1) {
+            return new ArrayList<>(nonEmpty.get(0));
+        }
+
+        final List<List<VideoEntry>> lists = nonEmpty;
+        final int[] heads = new int[lists.size()];
+        // Queue of list indexes ordered by each list's next element; ties go to the earlier list
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, lists.size()), (a, b) -> {
+            int result = order.compare(lists.get(a).get(heads[a]), lists.get(b).get(heads[b]));
+            return result != 0 ? result : Integer.compare(a, b);
+        });
+        for (int i = 0; i < lists.size(); i++) {
+            queue.add(i);
+        }
+        List<VideoEntry> merged = new ArrayList<>(total);
+        while (!queue.isEmpty()) {
+            int list = queue.poll();
+            merged.add(lists.get(list).get(heads[list]++));
+            if (heads[list] < lists.get(list).size()) {
+                queue.add(list);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Lists one folder, forks a task for each subfolder within the depth limit and returns
+     * everything below it, sorted.
+     */
+    private abstract class FolderTask extends RecursiveTask<List<VideoEntry>> {
+        final Scan scan;
+        final int depth;
+
+        FolderTask(Scan scan, int depth) {
+            this.scan = scan;
+            this.depth = depth;
+        }
+
+        // Adds this folder's videos to videos, and tasks for its subfolders to subfolders
+        abstract void list(List<VideoEntry> videos, List<FolderTask> subfolders);
+
+        @Override
+        protected List<VideoEntry> compute() {
+            List<VideoEntry> videos = new ArrayList<>();
+            if (scan.cancelled) {
+                return videos;
+            }
+            List<FolderTask> subfolders = new ArrayList<>();
+            list(videos, depth < maxDepth ? subfolders : null);
+            // Keys are computed here so binding only has to read them. Only cheap ones, so the
+            // batch reaches the grid without opening a video: a fingerprint already known for the
+            // file, otherwise the location's. New files are fingerprinted when the scan finishes.
+            for (VideoEntry video : videos) {
+                String fingerprint = fingerprints != null ? fingerprints.knownKeyFor(video) : null;
+                if (fingerprint != null) {
+                    video.setCacheKey(fingerprint);
+                } else {
+                    video.getCacheKey();
+                }
+            }
+            Collections.sort(videos, scan.order);
+            scan.publish(videos);
+            if (subfolders.isEmpty()) {
+                return videos;
+            }
+
+            invokeAll(subfolders);
+            List<List<VideoEntry>> sortedLists = new ArrayList<>(subfolders.size() + 1);
+            sortedLists.add(videos);
+            for (FolderTask subfolder : subfolders) {
+                sortedLists.add(subfolder.join());
+            }
+            return merge(sortedLists, scan.order);
+        }
+    }
+
+    private final class TreeFolderTask extends FolderTask {
+        private final Uri treeUri;
+        private final String documentId;
+        volatile boolean listed;
+
+        TreeFolderTask(Scan scan, Uri treeUri, String documentId, int depth) {
+            super(scan, depth);
+            this.treeUri = treeUri;
+            this.documentId = documentId;
+        }
+
+        @Override
+        void list(List<VideoEntry> videos, List<FolderTask> subfolders) {
+            List<String> subfolderIds = subfolders != null ? new ArrayList<String>() : null;
+            listed = VideoFolderScanner.scan(context, treeUri, documentId, videos, subfolderIds);
+            if (subfolderIds != null) {
+                for (String id : subfolderIds) {
+                    subfolders.add(new TreeFolderTask(scan, treeUri, id, depth + 1));
+                }
+            }
+        }
+    }
+
+    private final class LocalFolderTask extends FolderTask {
+        private final File folder;
+
+        LocalFolderTask(Scan scan, File folder, int depth) {
+            super(scan, depth);
+            this.folder = folder;
+        }
+
+        @Override
+        void list(List<VideoEntry> videos, List<FolderTask> subfolders) {
+            File[] files = folder.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (subfolders != null && !VideoFolderScanner.isHidden(file.getName())) {
+                        subfolders.add(new LocalFolderTask(scan, file, depth + 1));
+                    }
+                } else if (VideoFolderScanner.isVideoName(file.getName())) {
+                    // Capture the attributes once instead of a stat per comparison or bind
+                    videos.add(VideoEntry.fromFile(file));
+                }
+            }
+        }
+    }
+
+    private abstract class Scan implements Runnable {
+        private final Comparator<VideoEntry> order;
+        private final Listener listener;
+        long startTime;
+        volatile boolean cancelled;
+
+        Scan(Comparator<VideoEntry> order, Listener listener) {
+            this.order = order;
+            this.listener = listener;
+        }
+
+        abstract void scan();
+
+        @Override
+        public void run() {
+            startTime = System.currentTimeMillis();
+            scan();
+        }
+
+        void publish(final List<VideoEntry> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            post(() -> listener.onBatch(batch));
+        }
+
+        void finish(int kind, List<String> sources, List<VideoEntry> sorted, List<String> inaccessibleUris,
+                    List<String> unreadableUris, File folder) {
+            if (cancelled) {
+                return;
+            }
+            Log.d(TAG, "Found " + sorted.size() + " videos in " + (System.currentTimeMillis() - startTime) + "ms");
+            if (fingerprints != null) {
+                fingerprintNewVideos(sorted);
+                if (cancelled) {
+                    return;
+                }
+                fingerprints.save(sorted);
+                logDuplicates(sorted);
+            }
+            LibraryStore library = LibraryStore.of(sorted);
+            Log.d(TAG, "Library holds " + library.size() + " videos in ~" + (library.getMemoryBytes() / 1024) + "KB");
+            LibrarySnapshot.write(snapshotFile, kind, sources, library);
+            snapshotKind = kind;
+            snapshotSources = sources;
+            final Result result = new Result(library, inaccessibleUris, unreadableUris, folder);
+            post(() -> {
+                if (currentScan == this) {
+                    currentScan = null;
+                }
+                listener.onComplete(result);
+            });
+        }
+
+        // After every batch is on screen: reads the files the index doesn't know yet, so the final
+        // library shares cache entries between copies. Until it replaces the batches, new videos
+        // are cached under their location keys.
+        private void fingerprintNewVideos(List<VideoEntry> videos) {
+            long start = System.currentTimeMillis();
+            for (VideoEntry video : videos) {
+                if (cancelled) {
+                    return;
+                }
+                String fingerprint = fingerprints.keyFor(context, video);
+                if (fingerprint != null) {
+                    video.setCacheKey(fingerprint);
+                }
+            }
+            Log.d(TAG, "Fingerprinted " + videos.size() + " videos in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        // Every video sharing a key with one seen before reuses its probe, thumbnail decode and
+        // cache entries instead of making its own. Counts that work and the pack bytes a copy of
+        // each shared entry would take; bytes only cover what has been cached so far.
+        private void logDuplicates(List<VideoEntry> videos) {
+            HashMap<String, Integer> extraCopies = new HashMap<>();
+            HashSet<String> keys = new HashSet<>();
+            int duplicates = 0;
+            for (VideoEntry video : videos) {
+                String key = video.getCacheKey();
+                if (!keys.add(key)) {
+                    duplicates++;
+                    Integer copies = extraCopies.get(key);
+                    extraCopies.put(key, copies != null ? copies + 1 : 1);
+                }
+            }
+            if (duplicates == 0) {
+                return;
+            }
+            long savedBytes = 0;
+            Map<String, Long> packed = ThumbnailCache.getInstance(context).getPackedBytes(extraCopies.keySet());
+            for (Map.Entry<String, Long> entry : packed.entrySet()) {
+                savedBytes += entry.getValue() * extraCopies.get(entry.getKey());
+            }
+            Log.d(TAG, "Deduplicated " + duplicates + " videos: " + duplicates + " probes and thumbnail decodes not"
+                    + " repeated, " + (savedBytes / 1024) + "KB of packed thumbnails not stored twice");
+        }
+
+        // Runs on the main thread unless this scan has been cancelled by then
+        void post(final Runnable delivery) {
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    delivery.run();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.kidsvideos;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The last scanned library, saved as one binary file so the grid can be shown on startup
+ * before the folders are listed again.
+ *
+ * The file holds the folders that were scanned followed by every video in display order
+ * with its name, MIME type, modification time, size, duration if known and cache key. A snapshot only
+ * applies while the same folders are selected.
+ */
+final class LibrarySnapshot {
+    private static final String TAG = "LibrarySnapshot";
+    private static final int MAGIC = 0x4b564c53; // "KVLS"
+    private static final int VERSION = 3; // 2 added MIME type and duration, 3 the cache key
+
+    static final int KIND_TREES = 1; // Selected SAF folders
+    static final int KIND_LOCAL = 2; // Fallback common folder
+
+    private LibrarySnapshot() {
+    }
+
+    // Returns the saved videos if they were scanned from these sources, otherwise null
+    static LibraryStore read(File file, int kind, Collection<String> sources) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != kind) {
+                return null;
+            }
+            int sourceCount = in.readInt();
+            HashSet<String> savedSources = new HashSet<>();
+            for (int i = 0; i < sourceCount; i++) {
+                savedSources.add(in.readUTF());
+            }
+            // Local snapshots are valid for whichever common folder was readable
+            if (kind == KIND_TREES && !savedSources.equals(new HashSet<>(sources))) {
+                return null;
+            }
+
+            int count = in.readInt();
+            // Straight into columns, without an object per video
+            LibraryStore videos = new LibraryStore(count);
+            for (int i = 0; i < count; i++) {
+                String location = in.readUTF();
+                String name = in.readUTF();
+                String mimeType = in.readBoolean() ? in.readUTF() : null;
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                long durationMs = in.readLong();
+                videos.add(location, name, mimeType, size, lastModified, durationMs);
+                videos.setCacheKey(i, in.readLong(), in.readLong());
+            }
+            return videos;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Library snapshot unreadable, rescanning", e);
+            return null;
+        }
+    }
+
+    // Writes rows in the order they were added; readers sort them for display
+    static void write(File file, int kind, Collection<String> sources, LibraryStore videos) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(kind);
+            out.writeInt(sources.size());
+            for (String source : sources) {
+                out.writeUTF(source);
+            }
+            int count = videos.size();
+            out.writeInt(count);
+            for (int row = 0; row < count; row++) {
+                out.writeUTF(videos.getLocation(row));
+                out.writeUTF(videos.getName(row));
+                String mimeType = videos.getMimeType(row);
+                out.writeBoolean(mimeType != null);
+                if (mimeType != null) {
+                    out.writeUTF(mimeType);
+                }
+                out.writeLong(videos.getLastModified(row));
+                out.writeLong(videos.getSizeBytes(row));
+                out.writeLong(videos.getDurationMs(row));
+                out.writeLong(videos.getCacheKeyHigh(row));
+                out.writeLong(videos.getCacheKeyLow(row));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write library snapshot", e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not replace " + file.getName());
+            tempFile.delete();
+        }
+    }
+
+    static void delete(File file) {
+        file.delete();
+    }
+}
@@ -0,0 +1,421 @@
+package com.example.kidsvideos;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The video library held as columns of primitives rather than one object per video.
+ *
+ * Modification times, sizes and durations live in parallel arrays indexed by row. Each
+ * location is split at its last '/': the directory or tree part is interned in a shared
+ * table, and the remainder is stored as UTF-8 in one byte arena next to the display name.
+ * MIME types are interned the same way. Display order is a permutation of rows, sorted by
+ * packing each modification time and row number into a single long so a plain primitive
+ * sort does the work.
+ *
+ * {@link #get(int)} materializes a short-lived {@link VideoEntry} for one position; durations
+ * and keys loaded through that entry are written back to the columns on the main thread. Each
+ * scan builds a new store, so a row always holds the same video.
+ */
+final class LibraryStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DURATION_NOT_LOADED = Integer.MIN_VALUE;
+    private static final int ROW_BITS = 20; // Rows packed into the low bits of a sort key
+    private static final int MAX_PACKED_ROWS = 1 << ROW_BITS;
+    private static final long MAX_PACKED_TIME = (1L << (63 - ROW_BITS)) - 1;
+
+    private int size;
+    private long[] lastModified;
+    private long[] sizeBytes;
+    private int[] durationMs; // DURATION_NOT_LOADED, VideoMetadata.UNKNOWN_DURATION or milliseconds
+    private int[] prefixIds;
+    private byte[] mimeIds; // -1 when unknown
+    private int[] suffixOffsets; // Row data in the arena is [location suffix][display name]
+    private int[] nameOffsets;
+    private long[] keyHigh; // MD5 cache key halves, both 0 until computed
+    private long[] keyLow;
+    private byte[] arena;
+    private int arenaLength;
+    private int[] order; // Display position to row
+    private boolean newestFirst = true;
+    private int modCount; // Changes whenever positions do, so a copy can tell it is out of date
+
+    private final List<String> prefixes = new ArrayList<>();
+    private final HashMap<String, Integer> prefixIndex = new HashMap<>();
+    private final List<String> mimeTypes = new ArrayList<>();
+    private final HashMap<String, Integer> mimeIndex = new HashMap<>();
+
+    LibraryStore() {
+        this(16);
+    }
+
+    LibraryStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        lastModified = new long[capacity];
+        sizeBytes = new long[capacity];
+        durationMs = new int[capacity];
+        prefixIds = new int[capacity];
+        mimeIds = new byte[capacity];
+        suffixOffsets = new int[capacity];
+        nameOffsets = new int[capacity];
+        keyHigh = new long[capacity];
+        keyLow = new long[capacity];
+        order = new int[capacity];
+        arena = new byte[capacity * 64];
+    }
+
+    // Same rows in the same order, e.g. for a background thread to read while this one changes
+    private LibraryStore(LibraryStore source) {
+        size = source.size;
+        lastModified = Arrays.copyOf(source.lastModified, Math.max(1, size));
+        sizeBytes = Arrays.copyOf(source.sizeBytes, lastModified.length);
+        durationMs = Arrays.copyOf(source.durationMs, lastModified.length);
+        prefixIds = Arrays.copyOf(source.prefixIds, lastModified.length);
+        mimeIds = Arrays.copyOf(source.mimeIds, lastModified.length);
+        suffixOffsets = Arrays.copyOf(source.suffixOffsets, lastModified.length);
+        nameOffsets = Arrays.copyOf(source.nameOffsets, lastModified.length);
+        keyHigh = Arrays.copyOf(source.keyHigh, lastModified.length);
+        keyLow = Arrays.copyOf(source.keyLow, lastModified.length);
+        order = Arrays.copyOf(source.order, lastModified.length);
+        arena = Arrays.copyOf(source.arena, Math.max(1, source.arenaLength));
+        arenaLength = source.arenaLength;
+        newestFirst = source.newestFirst;
+        modCount = source.modCount;
+        prefixes.addAll(source.prefixes);
+        prefixIndex.putAll(source.prefixIndex);
+        mimeTypes.addAll(source.mimeTypes);
+        mimeIndex.putAll(source.mimeIndex);
+    }
+
+    LibraryStore copy() {
+        return new LibraryStore(this);
+    }
+
+    int getModCount() {
+        return modCount;
+    }
+
+    // A store holding the videos in the given order
+    static LibraryStore of(List<VideoEntry> videos) {
+        LibraryStore store = new LibraryStore(videos.size());
+        for (VideoEntry video : videos) {
+            store.add(video);
+        }
+        return store;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Appends a video at the end of the display order
+    void add(VideoEntry video) {
+        long duration = video.isDurationLoaded() ? video.getDurationMs() : VideoEntry.DURATION_NOT_LOADED;
+        add(video.location, video.displayName, video.mimeType, video.sizeBytes, video.lastModified, duration);
+        String cacheKey = video.peekCacheKey();
+        if (cacheKey != null) {
+            setCacheKey(size - 1, cacheKey);
+        }
+    }
+
+    void add(String location, String displayName, String mimeType, long size, long modified, long duration) {
+        ensureCapacity(this.size + 1);
+        int row = this.size;
+        int split = location.lastIndexOf('/') + 1;
+        prefixIds[row] = intern(location.substring(0, split), prefixes, prefixIndex);
+        mimeIds[row] = mimeType != null && mimeTypes.size() < Byte.MAX_VALUE
+                ? (byte) intern(mimeType, mimeTypes, mimeIndex) : -1;
+        suffixOffsets[row] = append(location.substring(split));
+        nameOffsets[row] = append(displayName);
+        lastModified[row] = modified;
+        sizeBytes[row] = size;
+        durationMs[row] = duration == VideoEntry.DURATION_NOT_LOADED
+                ? DURATION_NOT_LOADED : (int) Math.min(Integer.MAX_VALUE, duration);
+        keyHigh[row] = 0;
+        keyLow[row] = 0;
+        order[row] = row;
+        this.size++;
+        modCount++;
+    }
+
+    // Adds videos that are already sorted in this store's order, merging them into place
+    void addSorted(List<VideoEntry> videos) {
+        int firstNew = size;
+        for (VideoEntry video : videos) {
+            add(video);
+        }
+        if (firstNew == 0 || size > MAX_PACKED_ROWS) {
+            if (firstNew != 0) {
+                sort(newestFirst);
+            }
+            return;
+        }
+        int[] merged = new int[order.length];
+        int existing = 0;
+        int added = firstNew;
+        int out = 0;
+        while (existing < firstNew && added < size) {
+            merged[out++] = sortKey(order[existing]) <= sortKey(added) ? order[existing++] : added++;
+        }
+        while (existing < firstNew) {
+            merged[out++] = order[existing++];
+        }
+        while (added < size) {
+            merged[out++] = added++;
+        }
+        order = merged;
+    }
+
+    // Sorts by modification time; videos with the same time keep the order they were added in
+    void sort(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+        modCount++;
+        if (size > MAX_PACKED_ROWS) {
+            sortBoxed();
+            return;
+        }
+        long[] keys = new long[size];
+        for (int row = 0; row < size; row++) {
+            keys[row] = sortKey(row);
+        }
+        Arrays.sort(keys);
+        for (int position = 0; position < size; position++) {
+            order[position] = (int) (keys[position] & (MAX_PACKED_ROWS - 1));
+        }
+    }
+
+    private long sortKey(int row) {
+        long time = Math.min(Math.max(0, lastModified[row]), MAX_PACKED_TIME);
+        if (newestFirst) {
+            time = MAX_PACKED_TIME - time;
+        }
+        return (time << ROW_BITS) | row;
+    }
+
+    // Larger than the packed key can index, fall back to a comparator sort
+    private void sortBoxed() {
+        Integer[] rows = new Integer[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+        }
+        Arrays.sort(rows, (a, b) -> {
+            int result = newestFirst ? Long.compare(lastModified[b], lastModified[a])
+                    : Long.compare(lastModified[a], lastModified[b]);
+            return result != 0 ? result : Integer.compare(a, b);
+        });
+        for (int position = 0; position < size; position++) {
+            order[position] = rows[position];
+        }
+    }
+
+    VideoEntry get(int position) {
+        int row = order[position];
+        int mime = mimeIds[row];
+        return new VideoEntry(getLocation(row), getName(row), mime >= 0 ? mimeTypes.get(mime) : null,
+                sizeBytes[row], lastModified[row], this, row);
+    }
+
+    // A read-only list view, materializing entries as they are read
+    List<VideoEntry> asList() {
+        return new AbstractList<VideoEntry>() {
+            @Override
+            public VideoEntry get(int position) {
+                return LibraryStore.this.get(position);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    long getDurationMs(int row) {
+        int duration = durationMs[row];
+        return duration == DURATION_NOT_LOADED ? VideoEntry.DURATION_NOT_LOADED : duration;
+    }
+
+    void setDurationMs(int row, long duration) {
+        if (row < size) {
+            durationMs[row] = (int) Math.min(Integer.MAX_VALUE, duration);
+        }
+    }
+
+    // Background threads only: hashes the cache key of every row that doesn't have one yet, so
+    // binding never has to
+    void prepareCacheKeys() {
+        for (int row = 0; row < size; row++) {
+            if (!hasCacheKey(row)) {
+                setCacheKey(row, VideoEntry.generateCacheKey(getLocation(row), lastModified[row]));
+            }
+        }
+    }
+
+    boolean hasCacheKey(int row) {
+        return keyHigh[row] != 0 || keyLow[row] != 0;
+    }
+
+    // Null until computed
+    String getCacheKey(int row) {
+        if (!hasCacheKey(row)) {
+            return null;
+        }
+        char[] hex = new char[32];
+        toHex(keyHigh[row], hex, 0);
+        toHex(keyLow[row], hex, 16);
+        return new String(hex);
+    }
+
+    void setCacheKey(int row, String key) {
+        // Only MD5 hex keys fit the columns; a fallback key stays with its entry
+        if (row < size && key.length() == 32) {
+            setCacheKey(row, parseHex(key, 0), parseHex(key, 16));
+        }
+    }
+
+    void setCacheKey(int row, long high, long low) {
+        keyHigh[row] = high;
+        keyLow[row] = low;
+    }
+
+    long getCacheKeyHigh(int row) {
+        return keyHigh[row];
+    }
+
+    long getCacheKeyLow(int row) {
+        return keyLow[row];
+    }
+
+    // Row behind a display position, for carrying state between stores
+    int rowAt(int position) {
+        return order[position];
+    }
+
+    boolean isSameLocation(int position, LibraryStore other, int otherPosition) {
+        int row = order[position];
+        int otherRow = other.order[otherPosition];
+        if (!prefixes.get(prefixIds[row]).equals(other.prefixes.get(other.prefixIds[otherRow]))) {
+            return false;
+        }
+        int length = nameOffsets[row] - suffixOffsets[row];
+        int otherLength = other.nameOffsets[otherRow] - other.suffixOffsets[otherRow];
+        return length == otherLength && rangeEquals(arena, suffixOffsets[row], other.arena, other.suffixOffsets[otherRow], length);
+    }
+
+    boolean isSameContents(int position, LibraryStore other, int otherPosition) {
+        int row = order[position];
+        int otherRow = other.order[otherPosition];
+        if (lastModified[row] != other.lastModified[otherRow] || sizeBytes[row] != other.sizeBytes[otherRow]) {
+            return false;
+        }
+        int length = nameEnd(row) - nameOffsets[row];
+        int otherLength = other.nameEnd(otherRow) - other.nameOffsets[otherRow];
+        return length == otherLength && rangeEquals(arena, nameOffsets[row], other.arena, other.nameOffsets[otherRow], length);
+    }
+
+    // Row accessors in storage order, for writing the snapshot
+    String getLocation(int row) {
+        return prefixes.get(prefixIds[row])
+                + new String(arena, suffixOffsets[row], nameOffsets[row] - suffixOffsets[row], UTF_8);
+    }
+
+    String getName(int row) {
+        return new String(arena, nameOffsets[row], nameEnd(row) - nameOffsets[row], UTF_8);
+    }
+
+    String getMimeType(int row) {
+        return mimeIds[row] >= 0 ? mimeTypes.get(mimeIds[row]) : null;
+    }
+
+    long getLastModified(int row) {
+        return lastModified[row];
+    }
+
+    long getSizeBytes(int row) {
+        return sizeBytes[row];
+    }
+
+    // Approximate heap held by this store
+    long getMemoryBytes() {
+        long columns = (long) lastModified.length * (8 + 8 + 4 + 4 + 1 + 4 + 4 + 8 + 8 + 4);
+        long strings = 0;
+        for (String prefix : prefixes) {
+            strings += 40 + prefix.length() * 2L;
+        }
+        return columns + arena.length + strings;
+    }
+
+    private int nameEnd(int row) {
+        return row + 1 < size ? suffixOffsets[row + 1] : arenaLength;
+    }
+
+    private int append(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        if (arenaLength + bytes.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + bytes.length));
+        }
+        int offset = arenaLength;
+        System.arraycopy(bytes, 0, arena, offset, bytes.length);
+        arenaLength += bytes.length;
+        return offset;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= lastModified.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, lastModified.length * 2);
+        lastModified = Arrays.copyOf(lastModified, newCapacity);
+        sizeBytes = Arrays.copyOf(sizeBytes, newCapacity);
+        durationMs = Arrays.copyOf(durationMs, newCapacity);
+        prefixIds = Arrays.copyOf(prefixIds, newCapacity);
+        mimeIds = Arrays.copyOf(mimeIds, newCapacity);
+        suffixOffsets = Arrays.copyOf(suffixOffsets, newCapacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, newCapacity);
+        keyHigh = Arrays.copyOf(keyHigh, newCapacity);
+        keyLow = Arrays.copyOf(keyLow, newCapacity);
+        order = Arrays.copyOf(order, newCapacity);
+    }
+
+    private static int intern(String value, List<String> table, HashMap<String, Integer> index) {
+        Integer id = index.get(value);
+        if (id == null) {
+            id = table.size();
+            table.add(value);
+            index.put(value, id);
+        }
+        return id;
+    }
+
+    private static void toHex(long value, char[] out, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            out[offset + i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+
+    private static long parseHex(String hex, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            value = (value << 4) | Character.digit(hex.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static boolean rangeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
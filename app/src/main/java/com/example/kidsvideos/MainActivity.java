@@ -4,9 +4,11 @@ import android.Manifest;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.view.Menu;
@@ -24,8 +26,8 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
 import androidx.core.content.ContextCompat;
-import androidx.documentfile.provider.DocumentFile;
 import androidx.fragment.app.FragmentActivity;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -33,8 +35,7 @@ import java.util.concurrent.Executor;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.HashSet;
 import java.util.Set;
@@ -46,12 +47,16 @@ public class MainActivity extends AppCompatActivity {
     private static final String PREF_SORT_ORDER = "sort_order";
     private static final String SORT_DATE_ASC = "date_asc";
     private static final String SORT_DATE_DESC = "date_desc";
+    private static final int FOLDER_SCAN_DEPTH = 4; // Subfolder levels to search, e.g. show / season
+    private static final boolean FINGERPRINT_CACHE_KEYS = false; // Share cache entries between copies of a video
+    private static final boolean PROGRESSIVE_THUMBNAILS = false; // Show a video's first frame until its thumbnail is ready
 
     private Toolbar toolbar;
     private TextView tvNoVideos;
     private RecyclerView recyclerVideos;
     private VideoAdapter videoAdapter;
-    private List<File> videoFiles;
+    private ThumbnailCache.PrecacheProgressCallback precacheProgress;
+    private LibraryStore videos;
     private SharedPreferences prefs;
     private BiometricPrompt biometricPrompt;
     private BiometricPrompt.PromptInfo promptInfoAdd;
@@ -59,6 +64,7 @@ public class MainActivity extends AppCompatActivity {
     private String currentSortOrder;
     private Set<String> selectedFolderUris;
     private boolean isAuthenticatingForClear = false;
+    private LibraryScanner libraryScanner;
 
     private ActivityResultLauncher<String[]> requestPermissionLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(), result -> {
@@ -93,12 +99,15 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
     protected void onCreate(Bundle savedInstanceState) {
+        enableStrictModeForDebugBuilds();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
                         prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         currentSortOrder = prefs.getString(PREF_SORT_ORDER, SORT_DATE_DESC);
         selectedFolderUris = loadSelectedFolderUris();
+        libraryScanner = new LibraryScanner(this, FOLDER_SCAN_DEPTH, FINGERPRINT_CACHE_KEYS);
+        ThumbnailCache.getInstance(this).setProgressiveThumbnails(PROGRESSIVE_THUMBNAILS);
 
         initViews();
         setupToolbar();
@@ -147,9 +156,23 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Debug builds log main thread disk access and slow calls; VideoAdapterStrictModeTest holds
+    // binding to no violations at all
+    private void enableStrictModeForDebugBuilds() {
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            return;
+        }
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectCustomSlowCalls()
+                .penaltyLog()
+                .build());
+    }
+
     private void setupRecyclerView() {
-        videoFiles = new ArrayList<>();
-        videoAdapter = new VideoAdapter(videoFiles, this::playVideo);
+        videos = newLibrary();
+        videoAdapter = new VideoAdapter(videos, this::playVideo);
 
         GridLayoutManager layoutManager = new GridLayoutManager(this, 2); // 2 columns
         recyclerVideos.setLayoutManager(layoutManager);
@@ -166,6 +189,9 @@ public class MainActivity extends AppCompatActivity {
 
         // Optimize layout manager
         layoutManager.setInitialPrefetchItemCount(4); // Pre-fetch items
+
+        // Warm thumbnails and durations for the rows about to scroll into view
+        recyclerVideos.addOnScrollListener(new ThumbnailPrefetcher(this, layoutManager, videoAdapter));
     }
 
 
@@ -416,28 +442,31 @@ public class MainActivity extends AppCompatActivity {
 
     private void loadSavedFolderOrDefault() {
         if (!selectedFolderUris.isEmpty()) {
-            // Load videos from all selected folders
-            loadVideosFromAllFolders();
+            // Show the library saved by the last scan right away, then check the folders for changes
+            libraryScanner.restore(selectedFolderUris, restored -> {
+                if (restored != null) {
+                    showRestoredLibrary(restored);
+                }
+                scanSelectedFolders(restored != null);
+            });
         } else {
             // Fall back to common video folders only if we have storage permissions
             if (hasStoragePermission()) {
-                loadCommonVideoFolders();
+                libraryScanner.restore(null, restored -> {
+                    if (restored != null) {
+                        showRestoredLibrary(restored);
+                    }
+                    scanCommonVideoFolders(restored != null);
+                });
             } else {
                 // No saved folders and no storage permissions - show empty state
-                videoFiles.clear();
+                showEmptyLibrary();
                 updateToolbarSubtitle("No folders selected");
                 updateEmptyState();
             }
         }
     }
 
-    private void loadDefaultFolder() {
-        if (hasStoragePermission()) {
-            // Load from common video folders as fallback
-            loadCommonVideoFolders();
-        }
-    }
-
     private Set<String> loadSelectedFolderUris() {
         Set<String> uris = prefs.getStringSet(PREF_SELECTED_FOLDER_URIS, new HashSet<>());
         // Create a new HashSet to avoid modifying the returned set directly
@@ -460,9 +489,11 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void clearAllFolders() {
+        libraryScanner.cancel();
+        libraryScanner.clearSnapshot();
         selectedFolderUris.clear();
         saveSelectedFolderUris();
-        videoFiles.clear();
+        showEmptyLibrary();
         updateToolbarSubtitle("No folders selected");
         updateEmptyState();
         Toast.makeText(this, "All folders cleared", Toast.LENGTH_SHORT).show();
@@ -478,177 +509,161 @@ public class MainActivity extends AppCompatActivity {
         videoAdapter.notifyDataSetChanged();
     }
 
+    // Empty, in the saved sort order, so streamed batches are merged the way the scanner sorted them
+    private LibraryStore newLibrary() {
+        LibraryStore store = new LibraryStore();
+        store.sort(currentSortOrder.equals(SORT_DATE_DESC));
+        return store;
+    }
+
     private void sortVideoFiles() {
+        videos.sort(currentSortOrder.equals(SORT_DATE_DESC));
+    }
+
+    private Comparator<VideoEntry> videoOrder() {
         if (currentSortOrder.equals(SORT_DATE_DESC)) {
             // Sort by date modified, newest first
-            Collections.sort(videoFiles, (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
+            return (v1, v2) -> Long.compare(v2.lastModified, v1.lastModified);
         } else {
             // Sort by date modified, oldest first
-            Collections.sort(videoFiles, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
-        }
-    }
-
-    private boolean hasUriPermission(Uri uri) {
-        try {
-            DocumentFile documentFile = DocumentFile.fromTreeUri(this, uri);
-            return documentFile != null && documentFile.exists() && documentFile.canRead();
-        } catch (Exception e) {
-            return false;
+            return (v1, v2) -> Long.compare(v1.lastModified, v2.lastModified);
         }
     }
 
-    private void loadCommonVideoFolders() {
-        // Try common video folders as fallback
-        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-        File moviesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES);
-        File dcimDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM);
+    private void scanCommonVideoFolders(boolean revalidate) {
+        // Try common video folders as fallback, Downloads first, then external storage root
+        File[] candidates = {
+            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES),
+            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+            Environment.getExternalStorageDirectory()
+        };
+
+        prepareForScan(revalidate);
+        libraryScanner.scanFirstReadable(candidates, videoOrder(), new LibraryScanner.Listener() {
+            @Override
+            public void onBatch(List<VideoEntry> found) {
+                if (!revalidate) {
+                    showScannedBatch(found);
+                }
+            }
 
-        // Check Downloads folder first
-        if (downloadsDir.exists() && downloadsDir.canRead()) {
-            loadVideosFromFolder(downloadsDir);
-        } else if (moviesDir.exists() && moviesDir.canRead()) {
-            loadVideosFromFolder(moviesDir);
-        } else if (dcimDir.exists() && dcimDir.canRead()) {
-            loadVideosFromFolder(dcimDir);
-        } else {
-            // Fallback to external storage root
-            File externalStorage = Environment.getExternalStorageDirectory();
-            if (externalStorage.exists() && externalStorage.canRead()) {
-                loadVideosFromFolder(externalStorage);
+            @Override
+            public void onComplete(LibraryScanner.Result result) {
+                showScanResult(result, () -> {
+                    if (result.folder != null) {
+                        updateToolbarSubtitle(result.folder.getName());
+                    }
+                    startMetadataPrecaching();
+                });
             }
-        }
+        });
     }
 
+    private void loadVideosFromAllFolders() {
+        scanSelectedFolders(false);
+    }
 
+    // With revalidate the grid keeps showing the restored library and only changes are applied
+    private void scanSelectedFolders(boolean revalidate) {
+        prepareForScan(revalidate);
+        updateToolbarWithFolderCount();
 
-    private void loadVideosFromFolder(File folder) {
-        // Cancel any ongoing precaching before loading new videos
-        ThumbnailCache.getInstance(this).cancelPrecaching();
-        videoFiles.clear();
-
-        if (folder != null && folder.exists() && folder.canRead()) {
-            File[] files = folder.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (isVideoFile(file)) {
-                        videoFiles.add(file);
-                    }
+        // Load videos from all selected folders in the background
+        libraryScanner.scanTrees(selectedFolderUris, videoOrder(), new LibraryScanner.Listener() {
+            @Override
+            public void onBatch(List<VideoEntry> found) {
+                if (!revalidate) {
+                    showScannedBatch(found);
                 }
             }
-        }
 
-        sortVideoFiles();
-        updateUI(folder);
+            @Override
+            public void onComplete(LibraryScanner.Result result) {
+                if (!result.inaccessibleUris.isEmpty()) {
+                    // Permission lost or invalid URI, remove these from collection
+                    selectedFolderUris.removeAll(result.inaccessibleUris);
+                    saveSelectedFolderUris();
+                    Toast.makeText(MainActivity.this, "Lost access to a folder, removed from collection", Toast.LENGTH_SHORT).show();
+                }
+                if (!result.unreadableUris.isEmpty()) {
+                    // Kept in the collection, the next scan tries again
+                    Toast.makeText(MainActivity.this, "Error accessing folder, showing what could be read", Toast.LENGTH_LONG).show();
+                }
+                showScanResult(result, () -> {
+                    updateToolbarWithFolderCount();
 
-        // Start metadata precaching in background
-        startMetadataPrecaching();
+                    // Start metadata precaching in background
+                    startMetadataPrecaching();
+                });
+            }
+        });
     }
 
-    private void loadVideosFromAllFolders() {
+    private void prepareForScan(boolean revalidate) {
         // Cancel any ongoing precaching before loading new videos
         ThumbnailCache.getInstance(this).cancelPrecaching();
-        videoFiles.clear();
-
-        // Load videos from all selected folders
-        for (String uriString : selectedFolderUris) {
-            try {
-                Uri uri = Uri.parse(uriString);
-                // Check if we still have permission to access this URI
-                if (hasUriPermission(uri)) {
-                    loadVideosFromUri(uri, false); // Don't update UI for each folder
-                } else {
-                    // Permission lost, remove this URI from collection
-                    selectedFolderUris.remove(uriString);
-                    saveSelectedFolderUris();
-                    Toast.makeText(this, "Lost access to a folder, removed from collection", Toast.LENGTH_SHORT).show();
-                }
-            } catch (Exception e) {
-                // Invalid URI, remove it from collection
-                selectedFolderUris.remove(uriString);
-                saveSelectedFolderUris();
-            }
+        if (!revalidate) {
+            showEmptyLibrary();
         }
+    }
+
+    // A new store rather than clearing the shown one: jobs still holding its entries write
+    // durations back by row, and the scan's batches must not land in rows they can reach
+    private void showEmptyLibrary() {
+        videos = newLibrary();
+        videoAdapter.setVideos(videos);
+        videoAdapter.notifyDataSetChanged();
+    }
 
+    private void showRestoredLibrary(LibraryStore restored) {
+        videos = restored;
         sortVideoFiles();
-        updateToolbarWithFolderCount();
+        videoAdapter.setVideos(videos);
         updateVideoListUI();
+    }
 
-        // Start metadata precaching in background
-        startMetadataPrecaching();
-    }
-
-    private void loadVideosFromUri(Uri uri, boolean updateUI) {
-        try {
-            DocumentFile documentFile = DocumentFile.fromTreeUri(this, uri);
-            if (documentFile != null && documentFile.exists()) {
-                DocumentFile[] files = documentFile.listFiles();
-                for (DocumentFile file : files) {
-                    if (file.isFile() && isVideoFile(file.getName())) {
-                        // Create a VideoFile wrapper to hold both DocumentFile and File info
-                        videoFiles.add(new File(file.getName()) {
-                            @Override
-                            public String getAbsolutePath() {
-                                return file.getUri().toString();
-                            }
-
-                            @Override
-                            public boolean exists() {
-                                return file.exists();
-                            }
-
-                            @Override
-                            public String getName() {
-                                return file.getName();
-                            }
-
-                            @Override
-                            public long lastModified() {
-                                return file.lastModified();
-                            }
-                        });
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Toast.makeText(this, "Error accessing folder: " + e.getMessage(), Toast.LENGTH_LONG).show();
-        }
-
-        if (updateUI) {
-            sortVideoFiles();
-            updateUIForUri(uri);
-        }
+    // Shows videos as they are found so the grid fills while the scan is still running
+    private void showScannedBatch(List<VideoEntry> found) {
+        // Batches arrive sorted, so merging keeps the list in order without a full re-sort
+        videos.addSorted(found);
+        updateVideoListUI();
     }
 
-    private void updateUIForUri(Uri uri) {
-        if (uri != null) {
-            String path = uri.getLastPathSegment();
-            if (path != null) {
-                String folderName = extractFolderName(path);
-                updateToolbarSubtitle(folderName);
+    // Swaps in the final scan, notifying only the rows that were added, removed or changed. The
+    // diff runs on the scan thread against a copy, since the grid keeps changing this one.
+    // then runs once the new videos are shown.
+    private void showScanResult(LibraryScanner.Result result, Runnable then) {
+        final LibraryStore oldVideos = videos;
+        final LibraryStore shown = oldVideos.copy();
+        final LibraryStore newVideos = result.videos;
+        libraryScanner.diff(shown, newVideos, currentSortOrder.equals(SORT_DATE_DESC), diff -> {
+            // Unchanged videos keep the durations already loaded for them, also since the copy;
+            // the copy has the same rows, so only its positions are used
+            for (int position = 0; position < newVideos.size(); position++) {
+                int oldPosition = diff.convertNewPositionToOld(position);
+                if (oldPosition != DiffUtil.DiffResult.NO_POSITION
+                        && shown.isSameContents(oldPosition, newVideos, position)) {
+                    long durationMs = oldVideos.getDurationMs(shown.rowAt(oldPosition));
+                    if (durationMs != VideoEntry.DURATION_NOT_LOADED) {
+                        newVideos.setDurationMs(newVideos.rowAt(position), durationMs);
+                    }
+                }
             }
-        }
 
-        if (videoFiles.isEmpty()) {
-            tvNoVideos.setVisibility(TextView.VISIBLE);
-            recyclerVideos.setVisibility(RecyclerView.GONE);
-        } else {
-            tvNoVideos.setVisibility(TextView.GONE);
-            recyclerVideos.setVisibility(RecyclerView.VISIBLE);
-        }
-
-        videoAdapter.notifyDataSetChanged();
-    }
-
-    private String extractFolderName(String path) {
-        if (path.contains("primary:")) {
-            String cleanPath = path.replace("primary:", "");
-            if (cleanPath.startsWith("/")) {
-                cleanPath = cleanPath.substring(1);
+            boolean stale = videos != oldVideos || oldVideos.getModCount() != shown.getModCount();
+            videos = newVideos;
+            videoAdapter.setVideos(videos);
+            updateListVisibility();
+            if (stale) {
+                // Resorted while the diff ran, so its positions no longer match the grid
+                sortVideoFiles();
+                videoAdapter.notifyDataSetChanged();
+            } else {
+                diff.dispatchUpdatesTo(videoAdapter);
             }
-            String[] parts = cleanPath.split("/");
-            return parts.length > 0 ? parts[parts.length - 1] : "Storage";
-        }
-        return path;
+            then.run();
+        });
     }
 
     private void updateToolbarSubtitle(String subtitle) {
@@ -677,53 +692,28 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateVideoListUI() {
-        if (videoFiles.isEmpty()) {
-            tvNoVideos.setVisibility(TextView.VISIBLE);
-            recyclerVideos.setVisibility(RecyclerView.GONE);
-        } else {
-            tvNoVideos.setVisibility(TextView.GONE);
-            recyclerVideos.setVisibility(RecyclerView.VISIBLE);
-        }
+        updateListVisibility();
         videoAdapter.notifyDataSetChanged();
     }
 
-        private boolean isVideoFile(File file) {
-        if (!file.isFile()) return false;
-        return isVideoFile(file.getName());
-    }
-
-    private boolean isVideoFile(String fileName) {
-        if (fileName == null) return false;
-        String name = fileName.toLowerCase();
-        return name.endsWith(".mp4") || name.endsWith(".avi") || name.endsWith(".mkv") ||
-               name.endsWith(".mov") || name.endsWith(".wmv") || name.endsWith(".flv") ||
-               name.endsWith(".webm") || name.endsWith(".m4v") || name.endsWith(".3gp");
-    }
-
-    private void updateUI(File folder) {
-        if (folder != null) {
-            updateToolbarSubtitle(folder.getName());
-        }
-
-        if (videoFiles.isEmpty()) {
+    private void updateListVisibility() {
+        if (videos.isEmpty()) {
             tvNoVideos.setVisibility(TextView.VISIBLE);
             recyclerVideos.setVisibility(RecyclerView.GONE);
         } else {
             tvNoVideos.setVisibility(TextView.GONE);
             recyclerVideos.setVisibility(RecyclerView.VISIBLE);
         }
-
-        videoAdapter.notifyDataSetChanged();
     }
 
-    private void playVideo(File videoFile) {
+    private void playVideo(VideoEntry video) {
         Intent intent = new Intent(this, VideoPlayerActivity.class);
-        intent.putExtra("video_path", videoFile.getAbsolutePath());
+        video.putInto(intent);
         startActivity(intent);
     }
 
     private void startMetadataPrecaching() {
-        if (videoFiles.isEmpty()) {
+        if (videos.isEmpty()) {
             return;
         }
 
@@ -734,17 +724,22 @@ public class MainActivity extends AppCompatActivity {
             getSupportActionBar().setSubtitle(currentSubtitle + " • Optimizing...");
         }
 
-        // Start precaching with progress callback
-        ThumbnailCache.getInstance(this).precacheMetadata(this, videoFiles,
-            new ThumbnailCache.PrecacheProgressCallback() {
+        // Start precaching with progress callback; the cache holds it weakly, so keep it here
+        precacheProgress = new ThumbnailCache.PrecacheProgressCallback() {
                 @Override
-                public void onProgress(int processed, int total) {
-                    // Update subtitle with progress (optional, can be removed for less UI noise)
-                    if (getSupportActionBar() != null && processed % 10 == 0) { // Update every 10th video
+                public void onProgress(int processed, int total, float videosPerSecond) {
+                    // Progress arrives a few times a second at most, with the rate to estimate what's left
+                    if (getSupportActionBar() != null) {
                         String currentSubtitle = getSupportActionBar().getSubtitle() != null ?
                             getSupportActionBar().getSubtitle().toString() : "";
                         String baseSubtitle = currentSubtitle.split(" • ")[0]; // Remove previous progress text
-                        getSupportActionBar().setSubtitle(baseSubtitle + " • Optimizing " + processed + "/" + total);
+                        String progress = " • Optimizing " + processed + "/" + total;
+                        if (videosPerSecond > 0 && processed < total) {
+                            int secondsLeft = (int) ((total - processed) / videosPerSecond);
+                            progress += secondsLeft >= 60 ? " (~" + (secondsLeft / 60) + " min left)"
+                                    : " (<1 min left)";
+                        }
+                        getSupportActionBar().setSubtitle(baseSubtitle + progress);
                     }
                 }
 
@@ -758,18 +753,41 @@ public class MainActivity extends AppCompatActivity {
                         getSupportActionBar().setSubtitle(baseSubtitle);
                     }
                 }
-            });
+            };
+        // A snapshot of the rows: the shown store keeps being sorted and replaced on this thread
+        List<VideoEntry> snapshot = new ArrayList<>(videos.asList());
+        ThumbnailCache.getInstance(this).precacheMetadata(this, snapshot, precacheProgress);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Background results are delivered once per frame while the grid is visible
+        FrameDispatcher.getInstance().onOwnerStarted();
+        // Positions may have moved while the player was in front, or just finished loading
+        PositionStore.getInstance(this).whenLoaded(videoAdapter::refreshWatchedProgress);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        FrameDispatcher.getInstance().onOwnerStopped();
+        // Persist batched cache writes while we still can
+        ThumbnailCache.getInstance(this).flush();
+        libraryScanner.saveSnapshot(videos);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailCache.getInstance(this).trimMemory(level);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Clean up adapter's background tasks
-        if (videoAdapter != null) {
-            videoAdapter.cleanup();
-        }
-        // Cancel any ongoing precaching and clean up thumbnail cache resources
+        libraryScanner.shutdown();
+        // Cancel any ongoing precaching; the shared work pools outlive this Activity
         ThumbnailCache.getInstance(this).cancelPrecaching();
-        ThumbnailCache.getInstance(this).shutdown();
     }
 }
\ No newline at end of file
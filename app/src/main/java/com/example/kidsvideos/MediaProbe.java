@@ -0,0 +1,218 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Reads everything the caches need about a video from a single MediaMetadataRetriever session:
+ * duration, dimensions, rotation, bitrate, size and optionally the thumbnail frame.
+ * Content URIs are opened once through a ParcelFileDescriptor.
+ *
+ * On API 27+ the decoder scales frames itself, so a 4K source yields a bitmap just larger than
+ * the thumbnail instead of a full-resolution one that is shrunk afterwards.
+ */
+final class MediaProbe {
+    private static final String TAG = "MediaProbe";
+
+    static final class Result {
+        final VideoMetadata metadata;
+        final Bitmap frame; // At least the requested size, null if not requested or not decodable
+
+        Result(VideoMetadata metadata, Bitmap frame) {
+            this.metadata = metadata;
+            this.frame = frame;
+        }
+    }
+
+    // Receives a quick frame from the start of the video while the thumbnail frame is decoded
+    interface EarlyFrameListener {
+        void onEarlyFrame(Bitmap frame);
+    }
+
+    private MediaProbe() {
+    }
+
+    // frameWidth x frameHeight is the thumbnail the frame will fill, 0 x 0 for metadata only.
+    // A non-null early listener gets the first sync frame before the midpoint is decoded.
+    static Result probe(Context context, VideoEntry video, int frameWidth, int frameHeight,
+                        EarlyFrameListener early) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = open(context, video, retriever);
+            VideoMetadata metadata = readMetadata(retriever, video);
+            long durationMs = metadata.durationMs;
+
+            Bitmap frame = null;
+            if (frameWidth > 0 && frameHeight > 0) {
+                if (early != null) {
+                    // The first sync frame needs no seek, so it's ready long before the midpoint
+                    Bitmap earlyFrame = extractFrame(retriever, metadata, 0,
+                            MediaMetadataRetriever.OPTION_NEXT_SYNC, frameWidth, frameHeight);
+                    if (earlyFrame != null) {
+                        early.onEarlyFrame(earlyFrame);
+                    }
+                }
+                frame = extractFrame(retriever, metadata, thumbnailTimeUs(durationMs),
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC, frameWidth, frameHeight);
+            }
+            return new Result(metadata, frame);
+        } catch (Exception e) {
+            Log.e(TAG, "Error probing " + video.location, e);
+            return null;
+        } finally {
+            close(retriever, descriptor);
+        }
+    }
+
+    // Draws FrameSheet.frameCount() frames evenly spaced through the video into one sheet.
+    // Stops with null once the scope is cancelled, e.g. because the player closed.
+    static Bitmap extractFrameSheet(Context context, VideoEntry video, MediaWorkEngine.Scope scope) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = open(context, video, retriever);
+            VideoMetadata metadata = readMetadata(retriever, video);
+            if (metadata.durationMs <= 0) {
+                return null;
+            }
+            // Tiles keep the video's shape, 16:9 if it isn't known
+            boolean rotated = metadata.rotation == 90 || metadata.rotation == 270;
+            int sourceWidth = rotated ? metadata.height : metadata.width;
+            int sourceHeight = rotated ? metadata.width : metadata.height;
+            int tileWidth = FrameSheet.TILE_WIDTH;
+            int tileHeight = sourceWidth > 0 && sourceHeight > 0
+                    ? Math.max(1, Math.min(tileWidth * 2, tileWidth * sourceHeight / sourceWidth))
+                    : tileWidth * 9 / 16;
+
+            Bitmap sheet = Bitmap.createBitmap(FrameSheet.COLUMNS * tileWidth, FrameSheet.ROWS * tileHeight,
+                    Bitmap.Config.RGB_565);
+            Canvas canvas = new Canvas(sheet);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect tile = new Rect();
+            int drawn = 0;
+            for (int i = 0; i < FrameSheet.frameCount(); i++) {
+                if (scope.isCancelled()) {
+                    sheet.recycle();
+                    return null;
+                }
+                // Sync frames only: close enough for a preview, and no decoding up to the exact time
+                Bitmap frame = extractFrame(retriever, metadata, FrameSheet.frameTimeUs(i, metadata.durationMs),
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC, tileWidth, tileHeight);
+                if (frame == null) {
+                    continue; // Leaves a black tile
+                }
+                int left = (i % FrameSheet.COLUMNS) * tileWidth;
+                int top = (i / FrameSheet.COLUMNS) * tileHeight;
+                tile.set(left, top, left + tileWidth, top + tileHeight);
+                canvas.drawBitmap(frame, null, tile, paint);
+                frame.recycle();
+                drawn++;
+            }
+            if (drawn == 0) {
+                sheet.recycle();
+                return null;
+            }
+            return sheet;
+        } catch (Exception e) {
+            Log.e(TAG, "Error extracting frame sheet for " + video.location, e);
+            return null;
+        } finally {
+            close(retriever, descriptor);
+        }
+    }
+
+    // Points the retriever at the video; content URIs go through a descriptor the caller closes
+    private static ParcelFileDescriptor open(Context context, VideoEntry video, MediaMetadataRetriever retriever)
+            throws IOException {
+        if (!video.isContentUri()) {
+            retriever.setDataSource(video.location);
+            return null;
+        }
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(Uri.parse(video.location), "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException(video.location);
+        }
+        retriever.setDataSource(descriptor.getFileDescriptor());
+        return descriptor;
+    }
+
+    private static VideoMetadata readMetadata(MediaMetadataRetriever retriever, VideoEntry video) {
+        return new VideoMetadata(
+                parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION),
+                        VideoMetadata.UNKNOWN_DURATION),
+                (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH), 0),
+                (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT), 0),
+                (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION), 0),
+                Math.max(0, video.sizeBytes), // The size was captured by the scan
+                (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE), 0));
+    }
+
+    private static void close(MediaMetadataRetriever retriever, ParcelFileDescriptor descriptor) {
+        try {
+            retriever.release();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to release retriever", e);
+        }
+        if (descriptor != null) {
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close descriptor", e);
+            }
+        }
+    }
+
+    // Decodes straight to about the thumbnail's size where the platform allows it
+    private static Bitmap extractFrame(MediaMetadataRetriever retriever, VideoMetadata metadata, long timeUs,
+                                       int option, int frameWidth, int frameHeight) {
+        // Frames come out upright, so rotated videos swap their stored dimensions
+        boolean rotated = metadata.rotation == 90 || metadata.rotation == 270;
+        int sourceWidth = rotated ? metadata.height : metadata.width;
+        int sourceHeight = rotated ? metadata.width : metadata.height;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1 || sourceWidth <= 0 || sourceHeight <= 0) {
+            return retriever.getFrameAtTime(timeUs, option);
+        }
+        // The decoder fits the frame inside the box keeping its aspect ratio; size the box so the
+        // frame still covers the thumbnail on both axes and is only ever shrunk afterwards
+        float scale = Math.max(frameWidth / (float) sourceWidth, frameHeight / (float) sourceHeight);
+        if (scale >= 1) {
+            return retriever.getFrameAtTime(timeUs, option); // Already small, nothing to save
+        }
+        int width = (int) Math.ceil(sourceWidth * scale);
+        int height = (int) Math.ceil(sourceHeight * scale);
+        return retriever.getScaledFrameAtTime(timeUs, option, width, height);
+    }
+
+    // Halfway through the video, but at least 0.5s in and not past the end
+    static long thumbnailTimeUs(long durationMs) {
+        if (durationMs <= 0) {
+            return 1000000; // Default to 1 second if duration unavailable
+        }
+        long thumbnailTime = (durationMs / 2) * 1000;
+        return Math.max(500000, Math.min(thumbnailTime, durationMs * 1000 - 100000));
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid metadata value: " + value);
+            return fallback;
+        }
+    }
+}
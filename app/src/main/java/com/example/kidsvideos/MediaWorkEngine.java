@@ -0,0 +1,206 @@
+package com.example.kidsvideos;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The process-wide pools media work runs on. Every screen shares them, so recreating an Activity
+ * never leaves work queued on a pool that was shut down; idle threads time out instead.
+ *
+ * Work is split into two lanes. The I/O lane reads and writes cache files and snapshots; folder
+ * listing fans out over a fork-join pool of the same size. The decode lane opens videos, extracts
+ * frames and encodes thumbnails, and is sized by memory class as well as cores because every
+ * decode can hold a full-resolution frame. Both lanes run the most important work first.
+ *
+ * Work that belongs to one owner, such as a scanner or a precache run, goes through a
+ * {@link Scope} and is cancelled with it. Producers that can wait check {@link #isBacklogged}
+ * before queueing more.
+ */
+final class MediaWorkEngine {
+    private static final String TAG = "MediaWorkEngine";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int BACKLOG_PER_THREAD = 8; // Queued tasks per thread before producers hold off
+    private static final int MEMORY_CLASS_MB_PER_DECODE = 48; // Headroom for one full-resolution frame
+
+    private static MediaWorkEngine instance;
+
+    private final PriorityExecutor io;
+    private final PriorityExecutor decode;
+    private final ForkJoinPool listing;
+
+    private MediaWorkEngine(Context context) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = activityManager != null ? activityManager.getMemoryClass() : 32;
+
+        int ioThreads = Math.max(2, Math.min(4, cores));
+        int decodeThreads = Math.max(1, Math.min(Math.min(4, cores - 1), memoryClassMb / MEMORY_CLASS_MB_PER_DECODE));
+        io = new PriorityExecutor(ioThreads, KEEP_ALIVE_SECONDS, new LaneThreadFactory("media-io"));
+        decode = new PriorityExecutor(decodeThreads, KEEP_ALIVE_SECONDS, new LaneThreadFactory("media-decode"));
+        listing = new ForkJoinPool(ioThreads);
+        Log.d(TAG, ioThreads + " I/O and " + decodeThreads + " decode threads for " + cores
+                + " cores and a " + memoryClassMb + "MB memory class");
+    }
+
+    static synchronized MediaWorkEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaWorkEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    PriorityExecutor io() {
+        return io;
+    }
+
+    PriorityExecutor decode() {
+        return decode;
+    }
+
+    ForkJoinPool listing() {
+        return listing;
+    }
+
+    // True when a lane has more work queued than it will get through soon
+    boolean isBacklogged(PriorityExecutor lane) {
+        return lane.getQueue().size() >= lane.getMaximumPoolSize() * BACKLOG_PER_THREAD;
+    }
+
+    Scope newScope() {
+        return new Scope();
+    }
+
+    // Media threads run below the UI thread, like AsyncTask's
+    private static final class LaneThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        LaneThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name + "-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * Work submitted on behalf of one owner. Cancelling drops everything still queued and ignores
+     * later submissions. Running tasks are never interrupted, since an interrupt closes any file
+     * channel they are in the middle of, such as the thumbnail pack's; long tasks check
+     * {@link #isCancelled} between steps instead.
+     */
+    static final class Scope {
+        private final HashSet<ScopedTask> tasks = new HashSet<>(); // Guarded by itself
+        private volatile boolean cancelled;
+
+        private final class ScopedTask extends PriorityExecutor.Task {
+            final PriorityExecutor lane;
+            final Runnable runnable;
+
+            ScopedTask(PriorityExecutor lane, Runnable runnable) {
+                this.lane = lane;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    runnable.run();
+                } finally {
+                    synchronized (tasks) {
+                        tasks.remove(this);
+                    }
+                }
+            }
+        }
+
+        void execute(PriorityExecutor lane, Runnable runnable, int priority) {
+            ScopedTask task = new ScopedTask(lane, runnable);
+            synchronized (tasks) {
+                if (cancelled) {
+                    return;
+                }
+                tasks.add(task);
+            }
+            lane.execute(task, priority);
+        }
+
+        // Runs tasks one at a time in submission order on a lane, e.g. for work sharing a file
+        Executor serial(PriorityExecutor lane, int priority) {
+            return new SerialQueue(lane, priority);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        void cancel() {
+            synchronized (tasks) {
+                cancelled = true;
+                for (ScopedTask task : tasks) {
+                    task.lane.remove(task); // No-op for tasks already running, they finish on their own
+                }
+                tasks.clear();
+            }
+        }
+
+        private final class SerialQueue implements Executor {
+            private final PriorityExecutor lane;
+            private final int priority;
+            private final ArrayDeque<Runnable> queue = new ArrayDeque<>(); // Guarded by itself
+            private boolean active;
+
+            SerialQueue(PriorityExecutor lane, int priority) {
+                this.lane = lane;
+                this.priority = priority;
+            }
+
+            @Override
+            public void execute(Runnable runnable) {
+                synchronized (queue) {
+                    queue.add(runnable);
+                    if (active) {
+                        return;
+                    }
+                    active = true;
+                }
+                scheduleNext();
+            }
+
+            private void scheduleNext() {
+                final Runnable next;
+                synchronized (queue) {
+                    next = queue.poll();
+                    if (next == null) {
+                        active = false;
+                        return;
+                    }
+                }
+                Scope.this.execute(lane, () -> {
+                    try {
+                        next.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }, priority);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.kidsvideos;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps metadata for every video in one binary log file instead of a text file per value.
+ *
+ * The log is read once at startup into memory. New values are buffered and appended in
+ * batches; a value equal to the one already stored is never written. When the log holds
+ * many more records than live entries it is rewritten with one record per key.
+ */
+class MetadataStore {
+    private static final String TAG = "MetadataStore";
+    private static final int MAGIC = 0x4b564d44; // "KVMD"
+    private static final int VERSION = 2; // 2 added bitrate
+    private static final int BATCH_SIZE = 32; // Flush once this many values are pending
+
+    private final File file;
+    private final ConcurrentHashMap<String, VideoMetadata> entries = new ConcurrentHashMap<>();
+    private final Map<String, VideoMetadata> pending = new LinkedHashMap<>(); // Guarded by itself
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    MetadataStore(File directory, String name) {
+        file = new File(directory, name + ".bin");
+    }
+
+    // Includes the temporary file a rewrite replaces the log from
+    boolean owns(File candidate) {
+        String path = candidate.getPath();
+        return path.equals(file.getPath()) || path.equals(file.getPath() + ".tmp");
+    }
+
+    // Reads the whole log into memory; call once from a background thread
+    void load() {
+        synchronized (file) {
+            try {
+                int records = readLog();
+                if (records > entries.size() * 2 + BATCH_SIZE) {
+                    rewrite();
+                }
+                Log.d(TAG, "Loaded metadata for " + entries.size() + " videos from " + records + " records");
+            } finally {
+                loaded.countDown();
+            }
+        }
+    }
+
+    // Blocks until load() has finished; only for background threads
+    void awaitLoaded() throws InterruptedException {
+        loaded.await();
+    }
+
+    // Memory only, returns null for unknown keys or while the log is still loading
+    VideoMetadata get(String key) {
+        return entries.get(key);
+    }
+
+    // Returns true once enough values are pending that the caller should schedule flush()
+    boolean put(String key, VideoMetadata metadata) {
+        VideoMetadata previous = entries.put(key, metadata);
+        if (metadata.equals(previous)) {
+            return false; // Unchanged, nothing to write
+        }
+        synchronized (pending) {
+            pending.put(key, metadata);
+            return pending.size() >= BATCH_SIZE;
+        }
+    }
+
+    void flush() {
+        Map<String, VideoMetadata> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        synchronized (file) {
+            boolean writeHeader = !file.exists() || file.length() == 0;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                if (writeHeader) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                for (Map.Entry<String, VideoMetadata> entry : batch.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write metadata batch", e);
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (pending) {
+            pending.clear();
+        }
+        synchronized (file) {
+            entries.clear();
+            file.delete();
+            new File(file.getPath() + ".tmp").delete(); // Only left by a rewrite that never finished
+        }
+    }
+
+    private int readLog() {
+        if (!file.exists()) {
+            return 0;
+        }
+        Map<String, VideoMetadata> logged = new LinkedHashMap<>();
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Unrecognized metadata log, starting fresh");
+                file.delete();
+                return 0;
+            }
+            while (true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException end) {
+                    break;
+                }
+                VideoMetadata metadata = new VideoMetadata(in.readLong(), in.readInt(), in.readInt(),
+                        in.readInt(), in.readLong(), in.readInt());
+                logged.put(key, metadata); // Later records replace earlier ones
+                records++;
+            }
+        } catch (EOFException e) {
+            // A record was cut off mid-write; everything before it is still good
+            Log.w(TAG, "Metadata log ends with a partial record");
+            records = Integer.MAX_VALUE;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read metadata log", e);
+        }
+        // Values put while loading are newer than anything in the log
+        for (Map.Entry<String, VideoMetadata> entry : logged.entrySet()) {
+            entries.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        return records;
+    }
+
+    // Replaces the log with one record per live key
+    private void rewrite() {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, VideoMetadata> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rewrite metadata log", e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, VideoMetadata metadata) throws IOException {
+        out.writeUTF(key);
+        out.writeLong(metadata.durationMs);
+        out.writeInt(metadata.width);
+        out.writeInt(metadata.height);
+        out.writeInt(metadata.rotation);
+        out.writeLong(metadata.sizeBytes);
+        out.writeInt(metadata.bitrate);
+    }
+}
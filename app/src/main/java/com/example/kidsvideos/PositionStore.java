@@ -0,0 +1,222 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where each video was left off, kept across process deaths so a video resumes where it
+ * stopped and the grid can show how much of each one has been watched.
+ *
+ * The whole log is read in one pass when the store is first used. Positions are recorded in
+ * memory whenever the player reads one, twice a second while its controls show and every few
+ * seconds while they're hidden; the latest one per video is appended to the log in a batch
+ * a few seconds later, or right away when the player goes to the background. Like the metadata
+ * log, it is rewritten with one record per video once superseded records pile up.
+ */
+final class PositionStore {
+    private static final String TAG = "PositionStore";
+    private static final String FILE_NAME = "positions.bin";
+    private static final int MAGIC = 0x4b565053; // "KVPS"
+    private static final int VERSION = 1;
+    private static final long FLUSH_DELAY_MS = 10000; // Positions recorded within this are written together
+    private static final int REWRITE_SLACK = 64; // Superseded records tolerated before a rewrite
+
+    private static PositionStore instance;
+
+    static final class Position {
+        final long positionMs;
+        final long durationMs;
+
+        Position(long positionMs, long durationMs) {
+            this.positionMs = positionMs;
+            this.durationMs = durationMs;
+        }
+
+        // How much has been watched, from 0 to 1
+        float watchedFraction() {
+            return durationMs > 0 ? Math.min(1f, positionMs / (float) durationMs) : 0f;
+        }
+    }
+
+    private final File file;
+    private final PriorityExecutor ioLane;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentHashMap<String, Position> entries = new ConcurrentHashMap<>();
+    private final Map<String, Position> pending = new LinkedHashMap<>(); // Guarded by itself
+    private final List<Runnable> loadListeners = new ArrayList<>(); // Main thread only
+    private final Runnable scheduledFlush = this::flush;
+    private boolean flushScheduled; // Main thread only
+    private volatile boolean loaded;
+
+    private PositionStore(Context context) {
+        // Resume points are the user's, not a cache the system may clear
+        file = new File(context.getFilesDir(), FILE_NAME);
+        ioLane = MediaWorkEngine.getInstance(context).io();
+        ioLane.execute(this::load);
+    }
+
+    static synchronized PositionStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new PositionStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Memory only, null for videos never played or while the log is still loading
+    Position get(String location) {
+        return entries.get(location);
+    }
+
+    // Main thread: runs the listener once every saved position can be read
+    void whenLoaded(Runnable listener) {
+        if (loaded) {
+            listener.run();
+        } else {
+            loadListeners.add(listener);
+        }
+    }
+
+    // Main thread, cheap enough for every position read; reaches disk with the next batch
+    void record(String location, long positionMs, long durationMs) {
+        Position position = new Position(positionMs, durationMs);
+        entries.put(location, position);
+        synchronized (pending) {
+            pending.put(location, position); // Replaces any earlier position for this video
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            mainHandler.postDelayed(scheduledFlush, FLUSH_DELAY_MS);
+        }
+    }
+
+    // Main thread: writes what's pending now, e.g. when the player may be about to be killed
+    void flush() {
+        mainHandler.removeCallbacks(scheduledFlush);
+        flushScheduled = false;
+        ioLane.execute(this::writePending);
+    }
+
+    private void load() {
+        Map<String, Position> logged = new LinkedHashMap<>();
+        int records = readLog(logged);
+        // Positions recorded while loading are newer than anything in the log
+        for (Map.Entry<String, Position> entry : logged.entrySet()) {
+            entries.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        if (records > entries.size() + REWRITE_SLACK) {
+            rewrite();
+        }
+        Log.d(TAG, "Loaded " + entries.size() + " positions from " + records + " records");
+        mainHandler.post(() -> {
+            loaded = true;
+            for (Runnable listener : loadListeners) {
+                listener.run();
+            }
+            loadListeners.clear();
+        });
+    }
+
+    private int readLog(Map<String, Position> logged) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int records = 0;
+        synchronized (file) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(TAG, "Unrecognized position log, starting fresh");
+                    file.delete();
+                    return 0;
+                }
+                while (true) {
+                    String location;
+                    try {
+                        location = in.readUTF();
+                    } catch (EOFException end) {
+                        break;
+                    }
+                    logged.put(location, new Position(in.readLong(), in.readLong())); // Later records win
+                    records++;
+                }
+            } catch (EOFException e) {
+                // A record was cut off mid-write; everything before it is still good
+                Log.w(TAG, "Position log ends with a partial record");
+                records = Integer.MAX_VALUE;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read position log", e);
+            }
+        }
+        return records;
+    }
+
+    private void writePending() {
+        Map<String, Position> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        synchronized (file) {
+            boolean writeHeader = !file.exists() || file.length() == 0;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                if (writeHeader) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                for (Map.Entry<String, Position> entry : batch.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write position batch", e);
+            }
+        }
+    }
+
+    // Replaces the log with one record per video
+    private void rewrite() {
+        synchronized (file) {
+            File tempFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<String, Position> entry : entries.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to rewrite position log", e);
+                tempFile.delete();
+                return;
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String location, Position position) throws IOException {
+        out.writeUTF(location);
+        out.writeLong(position.positionMs);
+        out.writeLong(position.durationMs);
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.kidsvideos;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool that runs the most important work first. Lower priority values run
+ * first, and among equal priorities the most recently queued task runs first, so the rows a
+ * user just stopped on are served before the ones they flung past. Queued tasks can be pulled
+ * out again with {@link #remove(Runnable)} or moved with {@link #reprioritize(Task, int)}.
+ */
+class PriorityExecutor extends ThreadPoolExecutor {
+    // Maintenance work such as flushes and compaction, run when nothing else is waiting
+    static final int PRIORITY_BACKGROUND = Integer.MAX_VALUE;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    abstract static class Task implements Runnable, Comparable<Task> {
+        private int priority = PRIORITY_BACKGROUND;
+        private long order;
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            // Newest first
+            return Long.compare(other.order, order);
+        }
+    }
+
+    private static final class WrappedTask extends Task {
+        private final Runnable runnable;
+
+        WrappedTask(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    // A long-lived pool whose threads exit after keepAliveSeconds idle, rather than being shut down
+    PriorityExecutor(int threads, long keepAliveSeconds, ThreadFactory threadFactory) {
+        super(threads, threads, keepAliveSeconds, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        allowCoreThreadTimeOut(true);
+    }
+
+    // Plain runnables (including submit()) are queued as background work
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof Task) {
+            super.execute(command);
+        } else {
+            execute(new WrappedTask(command), PRIORITY_BACKGROUND);
+        }
+    }
+
+    void execute(Task task, int priority) {
+        task.priority = priority;
+        task.order = sequence.incrementAndGet();
+        super.execute(task);
+    }
+
+    // Requeues a waiting task at the given priority as the newest one; false if it already started
+    boolean reprioritize(Task task, int priority) {
+        if (!remove(task)) {
+            return false;
+        }
+        execute(task, priority);
+        return true;
+    }
+}
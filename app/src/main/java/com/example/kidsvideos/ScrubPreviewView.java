@@ -0,0 +1,66 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows the frame of a {@link FrameSheet} nearest the scrub position, above the SeekBar.
+ * Moving to another frame only redraws this view, nothing is decoded while scrubbing.
+ */
+public class ScrubPreviewView extends View {
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private FrameSheet sheet;
+    private int frameIndex = -1;
+
+    public ScrubPreviewView(Context context) {
+        super(context);
+    }
+
+    public ScrubPreviewView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    void setFrameSheet(FrameSheet sheet) {
+        this.sheet = sheet;
+        frameIndex = -1;
+        requestLayout(); // Frames may not be 16:9
+        invalidate();
+    }
+
+    boolean hasFrames() {
+        return sheet != null;
+    }
+
+    // Redraws only when the position crosses into another frame's part of the video
+    void showPosition(long positionMs, long durationMs) {
+        int index = FrameSheet.frameIndexAt(positionMs, durationMs);
+        if (index != frameIndex) {
+            frameIndex = index;
+            invalidate();
+        }
+    }
+
+    // As wide as the layout says, as tall as the frames' shape makes it
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = sheet != null ? width * sheet.getTileHeight() / sheet.getTileWidth() : width * 9 / 16;
+        setMeasuredDimension(width, height);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (sheet == null || frameIndex < 0) {
+            return;
+        }
+        sheet.frameBounds(frameIndex, source);
+        destination.set(0, 0, getWidth(), getHeight());
+        canvas.drawBitmap(sheet.bitmap, source, destination, paint);
+    }
+}
@@ -1,48 +1,117 @@
 package com.example.kidsvideos;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaMetadataRetriever;
-import android.net.Uri;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.List;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThumbnailCache {
     private static final String TAG = "ThumbnailCache";
     private static final String CACHE_DIR_NAME = "video_thumbnails";
-    private static final int CACHE_MAX_SIZE_MB = 50; // 50MB cache limit
-    private static final int THUMBNAIL_WIDTH = 200;
-    private static final int THUMBNAIL_HEIGHT = 150;
+    private static final String PACK_NAME = "thumbnails";
+    private static final String METADATA_NAME = "metadata";
+    private static final int CACHE_MAX_SIZE_MB = 50; // Default thumbnail pack budget
+    private static final long MIN_DISK_CACHE_BYTES = 5L * 1024 * 1024; // Kept even when storage is tight
+    private static final int FREE_SPACE_PERCENT = 10; // Never take more than this share of free space
+    private static final String LEGACY_CLEANED_MARKER = ".legacy_cleaned";
+    private static final int PRECACHE_EXTRA_IN_FLIGHT = 2; // Videos in flight beyond one per decode thread
+    private static final int PRECACHE_CHECKPOINT_INTERVAL = 16; // Videos persisted between flushes
+    private static final int JPEG_PIXELS_PER_BYTE = 4; // Rough size of a thumbnail before any are packed
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    // Widths of the 4:3 thumbnail variants kept per video. Each request gets the smallest one that
+    // covers its view, so decoded pixels track on-screen pixels on phones and tablets alike.
+    private static final int[] VARIANT_WIDTHS = {160, 240, 320, 480, 640, 960};
+    private static final String FRAME_SHEET_SUFFIX = "_frames"; // Pack key of a video's scrub previews
+    private static final int MEMORY_CACHE_DIVISOR = 8; // Use 1/8th of the app's memory class for bitmaps
+    private static final int BITMAP_POOL_DIVISOR = 4; // Pool up to 1/4 of the memory cache size for reuse
+    // Thumbnails are opaque JPEGs, so 16-bit pixels halve memory with no visible loss.
+    // HARDWARE bitmaps can't be decode targets for inBitmap, so they would defeat the pool.
+    private static final Bitmap.Config THUMBNAIL_CONFIG = Bitmap.Config.RGB_565;
 
     private static ThumbnailCache instance;
     private final File cacheDir;
-    private final ExecutorService executor;
-    private final ExecutorService precacheExecutor;
-    private final Map<String, String> metadataCache; // In-memory cache for metadata
-    private Future<?> currentPrecacheTask;
+    private final MediaWorkEngine engine;
+    private final PriorityExecutor decodeLane; // Probes, frame scaling and encoding
+    private final PriorityExecutor ioLane; // Pack, metadata and cache directory maintenance
+    private final MetadataStore metadataStore; // Typed metadata for every video in one file
+    private final LruCache<String, Bitmap> memoryCache; // Decoded thumbnails, sized in bytes
+    private final BitmapPool bitmapPool; // Frames no row holds any more, recycled into new decodes
+    // Cached thumbnails handed to callbacks and not released yet, with their hold counts. Weak, so a
+    // hold that is never released only keeps that one bitmap out of the pool. Guarded by itself.
+    private final WeakHashMap<Bitmap, Integer> holds = new WeakHashMap<>();
+    // Evicted from memory while held, pooled when the last hold is released. Guarded by holds.
+    private final Set<Bitmap> evictedWhileHeld = Collections.newSetFromMap(new WeakHashMap<>());
+    private final ThumbnailPackStore packStore; // Encoded thumbnails in one append-only file
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // Callbacks waiting on a thumbnail load that is queued or running, by cache key
+    private final Map<String, ThumbnailJob> pendingThumbnails = new HashMap<>();
+    private final ConcurrentHashMap<String, PendingProbe> pendingProbes = new ConcurrentHashMap<>();
+    private final FrameDispatcher dispatcher = FrameDispatcher.getInstance(); // Results reach the UI once per frame
+    // Requests that attached to an in-flight load or probe instead of starting their own
+    private final AtomicInteger coalescedRequests = new AtomicInteger();
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private volatile PrecacheRun currentPrecache;
+    // Variant the grid asked for last, grabbed when a metadata probe opens the video anyway
+    private volatile int preferredVariantWidth = VARIANT_WIDTHS[2];
+    private volatile boolean progressiveThumbnails;
 
+    // In progressive mode a visible row may be called twice: an early frame, then the thumbnail.
+    // The receiver gives each thumbnail back with releaseThumbnail once no view shows it.
     public interface ThumbnailCallback {
         void onThumbnailLoaded(Bitmap thumbnail);
     }
 
+    public interface MetadataCallback {
+        void onMetadataLoaded(VideoMetadata metadata);
+    }
+
+    // Called with null when no frames could be read from the video
+    public interface FrameSheetCallback {
+        void onFrameSheetLoaded(FrameSheet sheet);
+    }
+
+    // Handle for queued work; cancelling drops the callback and, if no one else wants the work, the work
+    public interface Request {
+        Request NONE = () -> { };
+
+        void cancel();
+    }
+
+    // Rows on screen are served first; prefetch only uses threads visible rows leave idle
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    // Precaching gets whatever is left
+    private static final int PRIORITY_PRECACHE = 2;
+
     public interface PrecacheProgressCallback {
-        void onProgress(int processed, int total);
+        // processed includes videos cached by earlier runs; total - processed are still to do
+        void onProgress(int processed, int total, float videosPerSecond);
         void onComplete();
     }
 
@@ -53,12 +122,34 @@ public class ThumbnailCache {
             cacheDir.mkdirs();
         }
 
-        executor = Executors.newFixedThreadPool(3); // Limit concurrent thumbnail generation
-        precacheExecutor = Executors.newFixedThreadPool(2); // Dedicated threads for precaching
-        metadataCache = new ConcurrentHashMap<>();
+        // Shared lanes that outlive any Activity: video work on decode, cache files on I/O
+        engine = MediaWorkEngine.getInstance(context);
+        decodeLane = engine.decode();
+        ioLane = engine.io();
+        metadataStore = new MetadataStore(cacheDir, METADATA_NAME);
+        packStore = new ThumbnailPackStore(cacheDir, PACK_NAME);
+        int memoryCacheSize = calculateMemoryCacheSize(context);
+        bitmapPool = new BitmapPool(memoryCacheSize / BITMAP_POOL_DIVISOR);
+        memoryCache = new LruCache<String, Bitmap>(memoryCacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+            // A row may still be drawing an evicted thumbnail, so it is reused once none holds it
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    poolWhenReleased(oldValue);
+                }
+            }
+        };
 
-        // Clean up old cache files on startup
-        cleanupCache();
+        // Read persisted metadata once, then size the disk cache to the storage left
+        ioLane.execute(metadataStore::load);
+        ioLane.execute(() -> {
+            removeLegacyFiles();
+            applyDiskBudget();
+        });
     }
 
     public static synchronized ThumbnailCache getInstance(Context context) {
@@ -68,347 +159,969 @@ public class ThumbnailCache {
         return instance;
     }
 
-    public void getThumbnail(Context context, java.io.File videoFile, ThumbnailCallback callback) {
-        executor.execute(() -> {
-            try {
-                Bitmap thumbnail = loadThumbnail(context, videoFile);
-                if (callback != null) {
-                    // Post back to main thread
-                    android.os.Handler mainHandler = new android.os.Handler(context.getMainLooper());
-                    mainHandler.post(() -> callback.onThumbnailLoaded(thumbnail));
+    private static int calculateMemoryCacheSize(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = activityManager != null ? activityManager.getMemoryClass() : 32;
+        return memoryClassMb * 1024 * 1024 / MEMORY_CACHE_DIVISOR;
+    }
+
+    // Progressive mode shows rows on screen the video's first frame while the real thumbnail,
+    // from the middle of the video, is still being decoded. Only the real one is cached.
+    public void setProgressiveThumbnails(boolean progressive) {
+        progressiveThumbnails = progressive;
+    }
+
+    // Loads a thumbnail at least targetWidth x targetHeight pixels, or the largest variant, answering
+    // from memory immediately when possible. The returned request can be cancelled, e.g. when the
+    // row is recycled; cancelled callbacks are never invoked.
+    public Request getThumbnail(Context context, VideoEntry video, int targetWidth, int targetHeight,
+                                int priority, ThumbnailCallback callback) {
+        int width = variantWidthFor(targetWidth, targetHeight);
+        preferredVariantWidth = width;
+        String cacheKey = variantKey(video.getCacheKey(), width);
+
+        // Serve from memory without a thread hop when the thumbnail was decoded recently
+        Bitmap cached = callback != null ? holdCached(cacheKey) : memoryCache.get(cacheKey);
+        if (cached != null) {
+            if (callback != null) {
+                callback.onThumbnailLoaded(cached);
+            }
+            return Request.NONE;
+        }
+
+        synchronized (pendingThumbnails) {
+            ThumbnailJob job = pendingThumbnails.get(cacheKey);
+            if (job != null) {
+                // Attach to the load that is already queued or running for this video
+                coalescedRequests.incrementAndGet();
+                if (priority < job.priority) {
+                    job.priority = priority;
                 }
+                // Move it to the front of its priority class, this row was just asked for again
+                decodeLane.reprioritize(job, job.priority);
+            } else {
+                // Jobs outlive the screen that asked, so they only keep the application context
+                job = new ThumbnailJob(context.getApplicationContext(), video, cacheKey, width, priority);
+                pendingThumbnails.put(cacheKey, job);
+                decodeLane.execute(job, priority);
+            }
+            ThumbnailAttachment attachment = new ThumbnailAttachment(callback);
+            job.callbacks.add(attachment);
+            ThumbnailJob attached = job;
+            return () -> cancelThumbnail(attached, attachment);
+        }
+    }
+
+    // One caller waiting on a job. Only the caller's Request holds it once the job is done, so a
+    // result queued for a screen that has gone away is dropped rather than keeping it alive.
+    private static final class ThumbnailAttachment {
+        final ThumbnailCallback callback;
+        volatile boolean cancelled;
+
+        ThumbnailAttachment(ThumbnailCallback callback) {
+            this.callback = callback;
+        }
+    }
+
+    private void cancelThumbnail(ThumbnailJob job, ThumbnailAttachment attachment) {
+        synchronized (pendingThumbnails) {
+            attachment.cancelled = true;
+            job.callbacks.remove(attachment);
+            // Nobody wants it any more and it hasn't started, so don't decode it at all
+            if (job.callbacks.isEmpty() && !job.started && decodeLane.remove(job)) {
+                pendingThumbnails.remove(job.cacheKey);
+            }
+        }
+    }
+
+    // Loads a thumbnail on the executor and hands it to every callback still attached when it's done
+    private final class ThumbnailJob extends PriorityExecutor.Task {
+        final Context context;
+        final VideoEntry video;
+        final String cacheKey; // Of the variant
+        final int width;
+        final List<ThumbnailAttachment> callbacks = new ArrayList<>();
+        int priority;
+        boolean started;
+
+        ThumbnailJob(Context context, VideoEntry video, String cacheKey, int width, int priority) {
+            this.context = context;
+            this.video = video;
+            this.cacheKey = cacheKey;
+            this.width = width;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            boolean visible;
+            synchronized (pendingThumbnails) {
+                if (callbacks.isEmpty()) {
+                    pendingThumbnails.remove(cacheKey); // Cancelled while being dequeued
+                    return;
+                }
+                started = true;
+                visible = priority == PRIORITY_VISIBLE;
+            }
+
+            Bitmap thumbnail = null;
+            try {
+                // Prefetched rows aren't on screen yet, an early frame would be wasted on them
+                MediaProbe.EarlyFrameListener early = progressiveThumbnails && visible ? this::deliverEarly : null;
+                thumbnail = loadThumbnail(context, video, width, early);
             } catch (Exception e) {
-                Log.e(TAG, "Error loading thumbnail for " + videoFile.getAbsolutePath(), e);
-                if (callback != null) {
-                    android.os.Handler mainHandler = new android.os.Handler(context.getMainLooper());
-                    mainHandler.post(() -> callback.onThumbnailLoaded(null));
+                Log.e(TAG, "Error loading thumbnail for " + video.location, e);
+            }
+
+            // Hand the result to everyone who asked with the next frame; later requests find it in memory
+            List<ThumbnailAttachment> waiting;
+            synchronized (pendingThumbnails) {
+                pendingThumbnails.remove(cacheKey);
+                waiting = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+            if (thumbnail != null && !holdIfCached(cacheKey, thumbnail, waiting.size())) {
+                // Evicted since it was loaded, so it may be in the pool already; load it once more
+                thumbnail = reload(waiting.size());
+            }
+            deliver(waiting, thumbnail);
+        }
+
+        private Bitmap reload(int holders) {
+            try {
+                Bitmap thumbnail = loadThumbnail(context, video, width, null);
+                if (thumbnail != null && holdIfCached(cacheKey, thumbnail, holders)) {
+                    return thumbnail;
                 }
+            } catch (Exception e) {
+                Log.e(TAG, "Error reloading thumbnail for " + video.location, e);
             }
-        });
-    }
+            return null;
+        }
 
-    // New method to cache metadata
-    public void cacheMetadata(java.io.File videoFile, String metadataType, String value) {
-        String cacheKey = generateCacheKey(videoFile) + "_" + metadataType;
-        metadataCache.put(cacheKey, value);
+        // Shown until the thumbnail replaces it; never cached, so it can't be served later
+        private void deliverEarly(Bitmap frame) {
+            Bitmap preview = scaleFrame(frame, width, true);
+            List<ThumbnailAttachment> waiting;
+            synchronized (pendingThumbnails) {
+                waiting = new ArrayList<>(callbacks);
+            }
+            deliver(waiting, preview);
+        }
 
-        // Also save to disk for persistence
-        executor.execute(() -> {
-            File metadataFile = new File(cacheDir, cacheKey + ".txt");
-            try (FileWriter writer = new FileWriter(metadataFile)) {
-                writer.write(value);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to save metadata to cache", e);
+        private void deliver(List<ThumbnailAttachment> waiting, Bitmap result) {
+            for (ThumbnailAttachment attachment : waiting) {
+                dispatcher.post(attachment, waiter -> {
+                    // Requests cancelled while the result waited for the frame are dropped here
+                    if (!waiter.cancelled && waiter.callback != null) {
+                        waiter.callback.onThumbnailLoaded(result);
+                    } else {
+                        releaseThumbnail(result);
+                    }
+                });
             }
-        });
+        }
     }
 
-    // New method to retrieve cached metadata
-    public String getCachedMetadata(java.io.File videoFile, String metadataType) {
-        String cacheKey = generateCacheKey(videoFile) + "_" + metadataType;
+    // Loads metadata in the background, probing the video if it isn't cached yet
+    public Request getMetadata(Context context, VideoEntry video, int priority, MetadataCallback callback) {
+        MetadataJob job = new MetadataJob(context.getApplicationContext(), video, callback);
+        decodeLane.execute(job, priority);
+        return () -> {
+            job.cancelled = true;
+            decodeLane.remove(job);
+        };
+    }
 
-        // Check in-memory cache first
-        String cached = metadataCache.get(cacheKey);
-        if (cached != null) {
-            return cached;
+    private final class MetadataJob extends PriorityExecutor.Task {
+        final Context context;
+        final VideoEntry video;
+        final MetadataCallback callback;
+        volatile boolean cancelled;
+
+        MetadataJob(Context context, VideoEntry video, MetadataCallback callback) {
+            this.context = context;
+            this.video = video;
+            this.callback = callback;
         }
 
-        // Check disk cache
-        File metadataFile = new File(cacheDir, cacheKey + ".txt");
-        if (metadataFile.exists() && metadataFile.lastModified() >= videoFile.lastModified()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
-                String value = reader.readLine();
-                if (value != null) {
-                    metadataCache.put(cacheKey, value); // Cache in memory for next time
-                    return value;
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            VideoMetadata metadata;
+            try {
+                metadata = loadMetadata(context, video);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // Held weakly until the frame: only the caller's Request keeps a finished job alive
+            dispatcher.post(this, job -> {
+                if (!job.cancelled) {
+                    job.callback.onMetadataLoaded(metadata);
                 }
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to read cached metadata", e);
+            });
+        }
+    }
+
+    // Loads the scrub preview frames for a video, generating them once and keeping them in the
+    // pack next to its thumbnails. Cancelling stops a sheet part way, generating one holds a
+    // decode thread for a while.
+    public Request getFrameSheet(Context context, VideoEntry video, FrameSheetCallback callback) {
+        FrameSheetLoad load = new FrameSheetLoad(callback);
+        Context appContext = context.getApplicationContext();
+        // Nothing in the grid is waiting while the player is up, but a thumbnail request still wins
+        load.scope.execute(decodeLane, () -> {
+            Bitmap sheet = loadFrameSheet(appContext, video, load.scope);
+            dispatcher.post(load, waiting -> {
+                if (!waiting.scope.isCancelled()) {
+                    waiting.callback.onFrameSheetLoaded(sheet != null ? new FrameSheet(sheet) : null);
+                }
+            });
+        }, PRIORITY_PREFETCH);
+        return load;
+    }
+
+    // Held by the caller as its Request, so a sheet for a closed player is dropped
+    private final class FrameSheetLoad implements Request {
+        final MediaWorkEngine.Scope scope = engine.newScope();
+        final FrameSheetCallback callback;
+
+        FrameSheetLoad(FrameSheetCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            scope.cancel();
+        }
+    }
+
+    private Bitmap loadFrameSheet(Context context, VideoEntry video, MediaWorkEngine.Scope scope) {
+        String key = video.getCacheKey() + FRAME_SHEET_SUFFIX;
+        byte[] encoded = packStore.get(key);
+        if (encoded != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = THUMBNAIL_CONFIG;
+            Bitmap sheet = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+            if (sheet != null) {
+                return sheet;
             }
+            packStore.remove(key); // Corrupted, generate it again
+        }
+        long startTime = SystemClock.uptimeMillis();
+        Bitmap sheet = MediaProbe.extractFrameSheet(context, video, scope);
+        if (sheet != null) {
+            saveThumbnailToCache(sheet, key);
+            Log.d(TAG, "Generated frame sheet for " + video.displayName + " in "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms");
         }
+        return sheet;
+    }
 
-        return null;
+    // Caches metadata for a video; it reaches disk with the next batched write
+    public void cacheMetadata(VideoEntry video, VideoMetadata metadata) {
+        video.setDurationMs(metadata.durationMs);
+        putMetadata(video.getCacheKey(), metadata);
+    }
+
+    private void putMetadata(String cacheKey, VideoMetadata metadata) {
+        if (metadataStore.put(cacheKey, metadata)) {
+            ioLane.execute(metadataStore::flush);
+        }
     }
 
-    // New method to precache metadata for all videos
-    public void precacheMetadata(Context context, List<java.io.File> videoFiles, PrecacheProgressCallback callback) {
+    // Returns metadata already held in memory, never touches the disk
+    public VideoMetadata getCachedMetadata(VideoEntry video) {
+        VideoMetadata metadata = metadataStore.get(video.getCacheKey());
+        if (metadata != null) {
+            video.setDurationMs(metadata.durationMs);
+        }
+        return metadata;
+    }
+
+    // Background threads only: waits for the metadata store to finish loading before looking
+    public VideoMetadata awaitCachedMetadata(VideoEntry video) throws InterruptedException {
+        metadataStore.awaitLoaded();
+        return getCachedMetadata(video);
+    }
+
+    // Background threads only: returns cached metadata, probing the video if there is none
+    public VideoMetadata loadMetadata(Context context, VideoEntry video) throws InterruptedException {
+        VideoMetadata cached = awaitCachedMetadata(video);
+        if (cached != null) {
+            return cached;
+        }
+        String cacheKey = video.getCacheKey();
+        // Grab the thumbnail frame in the same session unless we already have some variant
+        int frameWidth = hasAnyVariant(cacheKey) ? 0 : preferredVariantWidth;
+        ProbeResult probed = probeVideo(context, video, cacheKey, frameWidth, null, false);
+        return probed.metadata;
+    }
+
+    // Writes out pending metadata and the pack index, e.g. when the app goes to the background
+    public void flush() {
+        ioLane.execute(() -> {
+            metadataStore.flush();
+            packStore.flush();
+        });
+    }
+
+    // Fills the disk caches with metadata and a thumbnail for every video that is missing either,
+    // as far as the thumbnail budget has room. Whatever earlier runs saved is skipped, so a run cut
+    // short by cancelPrecaching() or process death resumes where it stopped.
+    public void precacheMetadata(Context context, List<VideoEntry> videos, PrecacheProgressCallback callback) {
         // Cancel any existing precaching
         cancelPrecaching();
 
-        if (videoFiles == null || videoFiles.isEmpty()) {
+        if (videos == null || videos.isEmpty()) {
             if (callback != null) {
                 callback.onComplete();
             }
             return;
         }
 
-        Log.d(TAG, "Starting metadata precaching for " + videoFiles.size() + " videos");
+        PrecacheRun run = new PrecacheRun(context.getApplicationContext(), videos, callback);
+        currentPrecache = run;
+        run.start();
+    }
 
-        currentPrecacheTask = precacheExecutor.submit(() -> {
-            int total = videoFiles.size();
-            int processed = 0;
+    // True while thumbnail work is queued deeper than the decode threads will clear soon;
+    // speculative callers such as prefetching hold off rather than add to it
+    public boolean isBacklogged() {
+        return engine.isBacklogged(decodeLane);
+    }
 
-            for (java.io.File videoFile : videoFiles) {
-                // Check if task was cancelled
-                if (Thread.currentThread().isInterrupted()) {
-                    Log.d(TAG, "Precaching cancelled");
-                    return;
-                }
+    // Method to cancel ongoing precaching
+    public void cancelPrecaching() {
+        PrecacheRun run = currentPrecache;
+        if (run != null && !run.isDone()) {
+            run.cancel();
+            Log.d(TAG, "Cancelled ongoing precaching");
+        }
+    }
 
-                try {
-                    // Check if metadata is already cached
-                    String cachedDuration = getCachedMetadata(videoFile, "duration");
-
-                    if (cachedDuration == null) {
-                        // Calculate and cache duration
-                        String duration = calculateVideoDuration(context, videoFile);
-                        if (duration != null) {
-                            cacheMetadata(videoFile, "duration", duration);
-                            Log.d(TAG, "Precached duration for: " + videoFile.getName());
-                        }
-                    }
+    /**
+     * Precaching on the shared lanes: each video is probed once through {@link #probeVideo}, so a
+     * visible row asking for the same video shares the probe instead of opening it again. Only a
+     * window of videos is in flight at once, and each finished video lets the next one start.
+     * Progress is checkpointed by flushing both stores every few videos, and on restart the
+     * planner skips every video they already cover.
+     *
+     * Precached thumbnails only fill room left in the pack's budget and never evict anything.
+     * Without that, a library larger than the budget would evict and re-encode itself on every
+     * run; instead the planner stops scheduling thumbnails once the room is used up, and the
+     * rest are made when their rows are shown.
+     */
+    private final class PrecacheRun {
+        final Context context;
+        final List<VideoEntry> videos;
+        // The caller keeps its callback alive for as long as it wants progress
+        final WeakReference<PrecacheProgressCallback> callback;
+        final MediaWorkEngine.Scope scope = engine.newScope();
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger sinceCheckpoint = new AtomicInteger();
+        final AtomicLong lastReport = new AtomicLong();
+        volatile boolean done;
+        // Set by the planner before any stage runs
+        volatile List<VideoEntry> remaining;
+        volatile boolean[] withThumbnail; // Per remaining video, false for metadata only
+        volatile long thumbnailBytes; // Expected pack room one thumbnail takes
+        volatile int total;
+        volatile int skipped;
+        volatile int width;
+        volatile long startTime;
 
-                    processed++;
+        PrecacheRun(Context context, List<VideoEntry> videos, PrecacheProgressCallback callback) {
+            this.context = context;
+            this.videos = videos;
+            this.callback = new WeakReference<>(callback);
+        }
 
-                    // Update progress on main thread
-                    if (callback != null) {
-                        final int currentProgress = processed;
-                        android.os.Handler mainHandler = new android.os.Handler(context.getMainLooper());
-                        mainHandler.post(() -> callback.onProgress(currentProgress, total));
-                    }
+        void start() {
+            scope.execute(ioLane, this::plan, PRIORITY_PRECACHE);
+        }
+
+        boolean isDone() {
+            return done || scope.isCancelled();
+        }
 
-                    // Small delay to prevent overwhelming the system
-                    Thread.sleep(50);
+        void cancel() {
+            scope.cancel();
+            ioLane.execute(this::checkpoint); // Keep what was finished before the cancel
+        }
 
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Precaching interrupted");
-                    Thread.currentThread().interrupt();
+        private void plan() {
+            try {
+                metadataStore.awaitLoaded();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            width = preferredVariantWidth;
+            total = videos.size();
+            long average = packStore.getAverageRecordBytes();
+            thumbnailBytes = average > 0 ? average : width * variantHeight(width) / JPEG_PIXELS_PER_BYTE;
+            long room = packStore.getRoomBytes();
+            List<VideoEntry> todo = new ArrayList<>();
+            List<Boolean> thumbnails = new ArrayList<>();
+            int overBudget = 0;
+            for (VideoEntry video : videos) {
+                if (scope.isCancelled()) {
                     return;
-                } catch (Exception e) {
-                    Log.e(TAG, "Error precaching metadata for " + videoFile.getAbsolutePath(), e);
-                    processed++; // Still count as processed even if failed
                 }
+                String cacheKey = video.getCacheKey();
+                VideoMetadata metadata = metadataStore.get(cacheKey);
+                if (metadata != null) {
+                    video.setDurationMs(metadata.durationMs);
+                }
+                // Videos that couldn't be read have nothing to make a thumbnail from
+                boolean wantsThumbnail = (metadata == null || metadata.durationMs != VideoMetadata.UNKNOWN_DURATION)
+                        && !hasPackedVariant(cacheKey);
+                boolean thumbnail = wantsThumbnail && room >= thumbnailBytes;
+                if (thumbnail) {
+                    room -= thumbnailBytes;
+                } else if (wantsThumbnail) {
+                    overBudget++;
+                }
+                if (metadata == null || thumbnail) {
+                    todo.add(video);
+                    thumbnails.add(thumbnail);
+                }
+            }
+            boolean[] planned = new boolean[thumbnails.size()];
+            for (int i = 0; i < planned.length; i++) {
+                planned[i] = thumbnails.get(i);
+            }
+            withThumbnail = planned;
+            remaining = todo;
+            skipped = total - todo.size();
+            Log.d(TAG, "Precaching " + todo.size() + " of " + total + " videos, " + skipped + " already cached, "
+                    + overBudget + " thumbnails left for when they're shown to stay in the disk budget");
+            startTime = SystemClock.uptimeMillis();
+            if (todo.isEmpty()) {
+                finish();
+                return;
             }
+            int window = decodeLane.getMaximumPoolSize() + PRECACHE_EXTRA_IN_FLIGHT;
+            for (int i = 0; i < window; i++) {
+                startNext();
+            }
+        }
 
-            Log.d(TAG, "Metadata precaching completed for " + processed + " videos");
+        // Starts on the next video, if any are left
+        private void startNext() {
+            int index = cursor.getAndIncrement();
+            if (index < remaining.size()) {
+                VideoEntry video = remaining.get(index);
+                boolean thumbnail = withThumbnail[index];
+                scope.execute(decodeLane, () -> probe(video, thumbnail), PRIORITY_PRECACHE);
+            }
+        }
 
-            // Notify completion on main thread
-            if (callback != null) {
-                android.os.Handler mainHandler = new android.os.Handler(context.getMainLooper());
-                mainHandler.post(callback::onComplete);
+        private void probe(VideoEntry video, boolean thumbnail) {
+            try {
+                String cacheKey = video.getCacheKey();
+                // A visible row may have made it since, or other writes may have used the room
+                int frameWidth = thumbnail && !hasPackedVariant(cacheKey)
+                        && packStore.getRoomBytes() >= thumbnailBytes ? width : 0;
+                probeVideo(context, video, cacheKey, frameWidth, null, true);
+                if (sinceCheckpoint.incrementAndGet() >= PRECACHE_CHECKPOINT_INTERVAL) {
+                    sinceCheckpoint.set(0);
+                    scope.execute(ioLane, this::checkpoint, PRIORITY_PRECACHE);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                Log.e(TAG, "Error precaching " + video.location, e);
             }
-        });
+            completed();
+        }
+
+        // Makes everything finished so far durable; a later run starts after it
+        private void checkpoint() {
+            metadataStore.flush();
+            packStore.flush();
+        }
+
+        // Counts a finished video and lets the next one in
+        private void completed() {
+            int count = processed.incrementAndGet();
+            if (count == remaining.size()) {
+                finish();
+                return;
+            }
+            startNext();
+            // Progress a few times a second at most
+            long now = SystemClock.uptimeMillis();
+            long last = lastReport.get();
+            if (now - last < PROGRESS_INTERVAL_MS || !lastReport.compareAndSet(last, now)) {
+                return;
+            }
+            float videosPerSecond = count * 1000f / Math.max(1, now - startTime);
+            int finished = skipped + count;
+            dispatcher.post(callback.get(), waiting -> {
+                if (!scope.isCancelled()) {
+                    waiting.onProgress(finished, total, videosPerSecond);
+                }
+            });
+        }
+
+        private void finish() {
+            checkpoint();
+            done = true;
+            int count = remaining.size();
+            float seconds = Math.max(1, SystemClock.uptimeMillis() - startTime) / 1000f;
+            Log.d(TAG, "Precached " + count + " videos in " + seconds + "s (" + (count / seconds) + " videos/s)");
+            dispatcher.post(callback.get(), waiting -> {
+                if (!scope.isCancelled()) {
+                    waiting.onProgress(total, total, count / seconds);
+                    waiting.onComplete();
+                }
+            });
+        }
     }
 
-    // Method to cancel ongoing precaching
-    public void cancelPrecaching() {
-        if (currentPrecacheTask != null && !currentPrecacheTask.isDone()) {
-            currentPrecacheTask.cancel(true);
-            Log.d(TAG, "Cancelled ongoing precaching");
+    // Smallest variant at least targetWidth x targetHeight, or the largest there is
+    static int variantWidthFor(int targetWidth, int targetHeight) {
+        for (int width : VARIANT_WIDTHS) {
+            if (width >= targetWidth && variantHeight(width) >= targetHeight) {
+                return width;
+            }
         }
+        return VARIANT_WIDTHS[VARIANT_WIDTHS.length - 1];
     }
 
-    // Helper method to calculate video duration
-    private String calculateVideoDuration(Context context, java.io.File videoFile) {
-        try {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    private static int variantHeight(int width) {
+        return width * 3 / 4;
+    }
 
-            // Check if it's a content URI or regular file path
-            String path = videoFile.getAbsolutePath();
-            if (path.startsWith("content://")) {
-                retriever.setDataSource(context, Uri.parse(path));
-            } else {
-                retriever.setDataSource(path);
-            }
+    private static String variantKey(String cacheKey, int width) {
+        return cacheKey + "_" + width;
+    }
 
-            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            retriever.release();
+    // Disk only, so planning doesn't disturb the memory cache's LRU order
+    private boolean hasPackedVariant(String cacheKey) {
+        for (int width : VARIANT_WIDTHS) {
+            if (packStore.contains(variantKey(cacheKey, width))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            if (durationStr != null && !durationStr.isEmpty()) {
-                long duration = Long.parseLong(durationStr);
-                long minutes = TimeUnit.MILLISECONDS.toMinutes(duration);
-                long seconds = TimeUnit.MILLISECONDS.toSeconds(duration) -
-                              TimeUnit.MINUTES.toSeconds(minutes);
-                return String.format("%02d:%02d", minutes, seconds);
+    private boolean hasAnyVariant(String cacheKey) {
+        for (int width : VARIANT_WIDTHS) {
+            String key = variantKey(cacheKey, width);
+            if (memoryCache.get(key) != null || packStore.contains(key)) {
+                return true;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error calculating duration for " + videoFile.getAbsolutePath(), e);
         }
-        return "Unknown";
+        return false;
     }
 
-    private Bitmap loadThumbnail(Context context, java.io.File videoFile) {
-        String cacheKey = generateCacheKey(videoFile);
-        File cacheFile = new File(cacheDir, cacheKey + ".jpg");
+    // A hit is never stale: location keys include the modification time, and fingerprint keys
+    // hash the size and both ends of the file, recomputed whenever its size or time changes
+    private Bitmap loadThumbnail(Context context, VideoEntry video, int width,
+                                 MediaProbe.EarlyFrameListener early) {
+        String cacheKey = video.getCacheKey();
+        String key = variantKey(cacheKey, width);
+        // Another request may have filled the memory tier while this one was queued
+        Bitmap inMemory = memoryCache.get(key);
+        if (inMemory != null) {
+            return inMemory;
+        }
 
-        // Check if cached thumbnail exists and is newer than video file
-        if (cacheFile.exists() && cacheFile.lastModified() >= videoFile.lastModified()) {
+        Bitmap cached = loadCachedVariant(cacheKey, width);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Generate new thumbnail, caching the metadata read along the way
+        try {
+            return probeVideo(context, video, cacheKey, width, early, false).thumbnail;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Decodes the variant from the pack, or shrinks a larger one, into memory; null if neither is there
+    private Bitmap loadCachedVariant(String cacheKey, int width) {
+        String key = variantKey(cacheKey, width);
+        byte[] encoded = packStore.get(key);
+        if (encoded != null) {
             try {
-                Bitmap cachedThumbnail = BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
+                Bitmap cachedThumbnail = decodeCachedThumbnail(encoded, width);
                 if (cachedThumbnail != null) {
-                    Log.d(TAG, "Loaded cached thumbnail for " + videoFile.getName());
+                    Log.d(TAG, "Loaded cached thumbnail " + key);
+                    memoryCache.put(key, cachedThumbnail);
                     return cachedThumbnail;
                 }
             } catch (Exception e) {
                 Log.w(TAG, "Failed to load cached thumbnail, will regenerate", e);
-                cacheFile.delete(); // Delete corrupted cache file
             }
+            packStore.remove(key); // Drop the corrupted entry
         }
 
-        // Generate new thumbnail
-        Bitmap thumbnail = generateThumbnail(context, videoFile);
-        if (thumbnail != null) {
-            // Cache the thumbnail
-            saveThumbnailToCache(thumbnail, cacheFile);
-            Log.d(TAG, "Generated and cached thumbnail for " + videoFile.getName());
+        // A larger variant is far cheaper to shrink than reopening the video
+        Bitmap derived = deriveFromLargerVariant(cacheKey, width);
+        if (derived != null) {
+            // Encoded before it is cached; once in memory it can be evicted and reused at any time
+            saveThumbnailToCache(derived, key);
+            memoryCache.put(key, derived);
         }
+        return derived;
+    }
 
-        return thumbnail;
+    private Bitmap deriveFromLargerVariant(String cacheKey, int width) {
+        for (int larger : VARIANT_WIDTHS) {
+            if (larger <= width) {
+                continue;
+            }
+            String key = variantKey(cacheKey, larger);
+            Bitmap source = holdCached(key); // Held so it isn't pooled while being drawn from
+            if (source != null) {
+                try {
+                    return scaleFrame(source, width, false);
+                } finally {
+                    releaseThumbnail(source);
+                }
+            }
+            byte[] encoded = packStore.get(key);
+            if (encoded != null) {
+                // Subsample while decoding so only about the target's pixels are ever allocated
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = THUMBNAIL_CONFIG;
+                options.inSampleSize = Math.max(1, Integer.highestOneBit(larger / width));
+                Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+                if (decoded != null) {
+                    return scaleFrame(decoded, width, true);
+                }
+            }
+        }
+        return null;
     }
 
-    private Bitmap generateThumbnail(Context context, java.io.File videoFile) {
-        try {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    private static final class ProbeResult {
+        final VideoMetadata metadata;
+        final Bitmap thumbnail;
 
-            // Check if it's a content URI or regular file path
-            String path = videoFile.getAbsolutePath();
-            if (path.startsWith("content://")) {
-                retriever.setDataSource(context, Uri.parse(path));
-            } else {
-                retriever.setDataSource(path);
+        ProbeResult(VideoMetadata metadata, Bitmap thumbnail) {
+            this.metadata = metadata;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    private static final class PendingProbe {
+        final int frameWidth;
+        final boolean precache;
+        final FutureTask<ProbeResult> task;
+
+        PendingProbe(int frameWidth, boolean precache, FutureTask<ProbeResult> task) {
+            this.frameWidth = frameWidth;
+            this.precache = precache;
+            this.task = task;
+        }
+    }
+
+    // Probes a video, sharing the result with any other thread probing the same video right now.
+    // frameWidth is the thumbnail variant to extract, 0 for metadata only. Only the thread that
+    // opens the video hands out an early frame. A precache probe keeps its thumbnail out of memory,
+    // only stores it if the pack has room without evicting, and returns none.
+    private ProbeResult probeVideo(Context context, VideoEntry video, String cacheKey, int frameWidth,
+                                   MediaProbe.EarlyFrameListener early, boolean precache) throws InterruptedException {
+        PendingProbe mine = new PendingProbe(frameWidth, precache,
+                new FutureTask<>(() -> runProbe(context, video, cacheKey, frameWidth, early, precache)));
+        PendingProbe existing = pendingProbes.putIfAbsent(cacheKey, mine);
+        if (existing == null) {
+            try {
+                mine.task.run();
+            } finally {
+                pendingProbes.remove(cacheKey, mine);
             }
+            return awaitProbe(mine);
+        }
 
-            // Get video duration and calculate halfway point
-            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            long thumbnailTime = 1000000; // Default to 1 second if duration unavailable
+        ProbeResult shared = awaitProbe(existing);
+        if (frameWidth == 0 || (existing.frameWidth == frameWidth && !existing.precache)) {
+            coalescedRequests.incrementAndGet();
+            return shared;
+        }
+        if (existing.frameWidth >= frameWidth && (existing.precache || shared.thumbnail != null)) {
+            // The running probe stored a frame at least this large, read it back or shrink it
+            // rather than opening the video again
+            Bitmap thumbnail = loadCachedVariant(cacheKey, frameWidth);
+            if (thumbnail != null) {
+                coalescedRequests.incrementAndGet();
+                return new ProbeResult(shared.metadata, thumbnail);
+            }
+        }
+        // The running probe skipped the frame or took a smaller one; its metadata is cached now,
+        // so only the frame is new work
+        return runProbe(context, video, cacheKey, frameWidth, early, precache);
+    }
 
-            if (durationStr != null && !durationStr.isEmpty()) {
-                try {
-                    long durationMs = Long.parseLong(durationStr);
-                    // Get frame from halfway through the video (convert ms to microseconds)
-                    thumbnailTime = (durationMs / 2) * 1000;
-
-                    // Ensure we don't go beyond video duration and have a minimum of 0.5 seconds
-                    thumbnailTime = Math.max(500000, Math.min(thumbnailTime, durationMs * 1000 - 100000));
-                } catch (NumberFormatException e) {
-                    Log.w(TAG, "Invalid duration format, using default time", e);
+    private static ProbeResult awaitProbe(PendingProbe probe) throws InterruptedException {
+        try {
+            return probe.task.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Opens the video once and fills both the metadata and thumbnail caches from that session
+    private ProbeResult runProbe(Context context, VideoEntry video, String cacheKey, int frameWidth,
+                                 MediaProbe.EarlyFrameListener early, boolean precache) {
+        // The decoder scales to about the variant's size, so only that much is ever allocated
+        MediaProbe.Result result = MediaProbe.probe(context, video,
+                frameWidth, frameWidth > 0 ? variantHeight(frameWidth) : 0, early);
+        if (result == null) {
+            // Remember the failure so we don't keep reopening a video that can't be read
+            VideoMetadata unknown = new VideoMetadata(VideoMetadata.UNKNOWN_DURATION, 0, 0, 0, 0, 0);
+            cacheMetadata(video, unknown);
+            return new ProbeResult(unknown, null);
+        }
+        cacheMetadata(video, result.metadata);
+
+        Bitmap thumbnail = null;
+        if (result.frame != null) {
+            // Scale the frame to the variant to save memory and disk space
+            thumbnail = scaleFrame(result.frame, frameWidth, true);
+            String key = variantKey(cacheKey, frameWidth);
+            if (!precache) {
+                saveThumbnailToCache(thumbnail, key);
+                memoryCache.put(key, thumbnail);
+                Log.d(TAG, "Generated and cached " + frameWidth + "px thumbnail for " + video.displayName);
+            } else {
+                byte[] encoded = encodeThumbnail(thumbnail);
+                if (encoded != null && !packStore.putIfRoom(key, encoded)) {
+                    Log.d(TAG, "Thumbnail budget full, not precaching " + video.displayName);
                 }
+                // Nobody else has seen it, so the next decode can reuse it
+                bitmapPool.put(thumbnail);
+                thumbnail = null;
             }
+        }
+        return new ProbeResult(result.metadata, thumbnail);
+    }
+
+    private Bitmap decodeCachedThumbnail(byte[] encoded, int width) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = THUMBNAIL_CONFIG;
+        options.inMutable = true;
+        options.inBitmap = bitmapPool.get(width, variantHeight(width), THUMBNAIL_CONFIG);
+        try {
+            return BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        } catch (IllegalArgumentException e) {
+            // The image didn't match the pooled bitmap's size, decode into a fresh one instead
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        }
+    }
 
-            // Get frame at calculated time
-            Bitmap rawThumbnail = retriever.getFrameAtTime(thumbnailTime, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-            retriever.release();
+    // Draws a frame into a (pooled) bitmap of the variant's size, freeing the frame if asked to
+    private Bitmap scaleFrame(Bitmap frame, int width, boolean recycleFrame) {
+        int height = variantHeight(width);
+        Bitmap thumbnail = bitmapPool.get(width, height, THUMBNAIL_CONFIG);
+        if (thumbnail == null) {
+            thumbnail = Bitmap.createBitmap(width, height, THUMBNAIL_CONFIG);
+        }
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawBitmap(frame, null, new Rect(0, 0, width, height), scalePaint);
+        if (recycleFrame) {
+            frame.recycle();
+        }
+        return thumbnail;
+    }
 
-            if (rawThumbnail != null) {
-                // Scale thumbnail to consistent size to save memory and disk space
-                return Bitmap.createScaledBitmap(rawThumbnail, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, true);
+    // Holds the thumbnail memory caches under key, if any, for a callback or a decode to use
+    private Bitmap holdCached(String key) {
+        synchronized (holds) {
+            Bitmap thumbnail = memoryCache.get(key);
+            if (thumbnail != null) {
+                addHolds(thumbnail, 1);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error generating thumbnail for " + videoFile.getAbsolutePath(), e);
+            return thumbnail;
         }
-        return null;
     }
 
-    private void saveThumbnailToCache(Bitmap thumbnail, File cacheFile) {
-        try (FileOutputStream out = new FileOutputStream(cacheFile)) {
-            thumbnail.compress(Bitmap.CompressFormat.JPEG, 85, out);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to save thumbnail to cache", e);
+    // Takes holders holds if memory still caches thumbnail under key. Once it has left memory it
+    // may be in the pool already, and then it must not be handed out.
+    private boolean holdIfCached(String key, Bitmap thumbnail, int holders) {
+        synchronized (holds) {
+            if (memoryCache.get(key) != thumbnail) {
+                return false;
+            }
+            addHolds(thumbnail, holders);
+            return true;
         }
     }
 
-    private String generateCacheKey(java.io.File videoFile) {
-        try {
-            // Use MD5 hash of file path + last modified time for cache key
-            String input = videoFile.getAbsolutePath() + "_" + videoFile.lastModified();
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] hash = md.digest(input.getBytes());
-
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
+    private void addHolds(Bitmap thumbnail, int holders) {
+        if (holders > 0) {
+            Integer held = holds.get(thumbnail);
+            holds.put(thumbnail, (held != null ? held : 0) + holders);
+        }
+    }
+
+    // Gives back a thumbnail a callback received, once no view shows it any more
+    public void releaseThumbnail(Bitmap thumbnail) {
+        if (thumbnail == null) {
+            return;
+        }
+        synchronized (holds) {
+            Integer held = holds.get(thumbnail);
+            if (held == null) {
+                return; // Never held, e.g. an early frame
+            }
+            if (held > 1) {
+                holds.put(thumbnail, held - 1);
+            } else {
+                holds.remove(thumbnail);
+                if (evictedWhileHeld.remove(thumbnail)) {
+                    bitmapPool.put(thumbnail);
                 }
-                hexString.append(hex);
             }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            // Fallback to simple hash if MD5 is not available
-            return String.valueOf((videoFile.getAbsolutePath() + videoFile.lastModified()).hashCode());
         }
     }
 
-    private void cleanupCache() {
-        executor.execute(() -> {
-            try {
-                long totalSize = 0;
-                File[] cacheFiles = cacheDir.listFiles();
-                if (cacheFiles != null) {
-                    // Calculate total cache size
-                    for (File file : cacheFiles) {
-                        totalSize += file.length();
-                    }
+    private void poolWhenReleased(Bitmap thumbnail) {
+        synchronized (holds) {
+            if (holds.containsKey(thumbnail)) {
+                evictedWhileHeld.add(thumbnail);
+            } else {
+                bitmapPool.put(thumbnail);
+            }
+        }
+    }
 
-                    // If cache exceeds limit, delete oldest files
-                    long maxSizeBytes = CACHE_MAX_SIZE_MB * 1024L * 1024L;
-                    if (totalSize > maxSizeBytes) {
-                        Log.d(TAG, "Cache size (" + (totalSize / 1024 / 1024) + "MB) exceeds limit, cleaning up...");
-
-                        // Sort files by last modified time (oldest first)
-                        java.util.Arrays.sort(cacheFiles, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
-
-                        // Delete oldest files until we're under the limit
-                        for (File file : cacheFiles) {
-                            if (totalSize <= maxSizeBytes) break;
-                            totalSize -= file.length();
-                            if (file.delete()) {
-                                Log.d(TAG, "Deleted old cache file: " + file.getName());
-                            }
-                        }
-                    }
+    private void saveThumbnailToCache(Bitmap thumbnail, String cacheKey) {
+        byte[] encoded = encodeThumbnail(thumbnail);
+        if (encoded != null) {
+            persistThumbnail(cacheKey, encoded);
+        }
+    }
+
+    // Null if the bitmap couldn't be compressed
+    private static byte[] encodeThumbnail(Bitmap thumbnail) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, 85, out)) {
+            Log.e(TAG, "Failed to encode thumbnail for cache");
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private void persistThumbnail(String cacheKey, byte[] encoded) {
+        packStore.put(cacheKey, encoded);
+
+        // Reclaim space from superseded entries once enough of it has piled up
+        if (packStore.needsCompaction() && compactionScheduled.compareAndSet(false, true)) {
+            ioLane.execute(() -> {
+                packStore.compact();
+                compactionScheduled.set(false);
+            });
+        }
+    }
+
+    // Caps the thumbnail pack at CACHE_MAX_SIZE_MB, or less when storage is nearly full
+    private void applyDiskBudget() {
+        long budget = CACHE_MAX_SIZE_MB * 1024L * 1024L;
+        try {
+            StatFs stats = new StatFs(cacheDir.getPath());
+            long freeShare = stats.getAvailableBytes() / 100 * FREE_SPACE_PERCENT;
+            budget = Math.min(budget, Math.max(MIN_DISK_CACHE_BYTES, freeShare));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Could not read free space, using the full cache budget", e);
+        }
+        Log.d(TAG, "Thumbnail disk budget " + (budget / 1024 / 1024) + "MB");
+        // Evicts right away if the pack is already over, then on every write that crosses it
+        packStore.setMaxBytes(budget);
+        if (packStore.needsCompaction()) {
+            packStore.compact();
+        }
+    }
+
+    // Deletes the per-video files written before the pack and metadata stores, once
+    private void removeLegacyFiles() {
+        File marker = new File(cacheDir, LEGACY_CLEANED_MARKER);
+        if (marker.exists()) {
+            return;
+        }
+        File[] cacheFiles = cacheDir.listFiles();
+        if (cacheFiles != null) {
+            for (File file : cacheFiles) {
+                if (file.getName().endsWith(".jpg") || file.getName().endsWith(".txt")) {
+                    file.delete();
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error during cache cleanup", e);
             }
-        });
+        }
+        try {
+            marker.createNewFile();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not record legacy cache cleanup", e);
+        }
+    }
+
+    // Background threads only: bytes the pack holds for each of the given cache keys, across all
+    // of their variants and frame sheets
+    Map<String, Long> getPackedBytes(Set<String> cacheKeys) {
+        return packStore.getBytesByOwner(cacheKeys);
+    }
+
+    public String getMemoryCacheStats() {
+        return "Thumbnail memory cache: " + (memoryCache.size() / 1024) + "KB/" + (memoryCache.maxSize() / 1024)
+                + "KB, hits=" + memoryCache.hitCount() + ", misses=" + memoryCache.missCount()
+                + ", evictions=" + memoryCache.evictionCount()
+                + "; bitmap pool: " + (bitmapPool.getSizeBytes() / 1024) + "KB, reused=" + bitmapPool.getReuseCount()
+                + ", allocated=" + bitmapPool.getMissCount()
+                + "; disk: " + (packStore.getLiveBytes() / 1024) + "KB/" + (CACHE_MAX_SIZE_MB * 1024)
+                + "KB, evictions=" + packStore.getEvictionCount()
+                + "; coalesced requests: " + coalescedRequests.get();
+    }
+
+    // Release decoded thumbnails when the system is running low on memory
+    public void trimMemory(int level) {
+        Log.d(TAG, getMemoryCacheStats());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            memoryCache.evictAll();
+            bitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+            bitmapPool.clear();
+        }
     }
 
     public void clearCache() {
         // Cancel any ongoing precaching
         cancelPrecaching();
+        // Thumbnails rows still show are pooled once released, the rest are dropped with the pool
+        memoryCache.evictAll();
+        bitmapPool.clear();
 
-        executor.execute(() -> {
+        ioLane.execute(() -> {
             try {
+                packStore.clear();
+                metadataStore.clear();
+                // The stores cleared their own files under their locks and may already have
+                // reopened them, so only strays are swept here
                 File[] cacheFiles = cacheDir.listFiles();
                 if (cacheFiles != null) {
                     for (File file : cacheFiles) {
-                        file.delete();
+                        if (!packStore.owns(file) && !metadataStore.owns(file)
+                                && !file.getName().equals(LEGACY_CLEANED_MARKER)) {
+                            file.delete();
+                        }
                     }
                 }
-                metadataCache.clear(); // Clear in-memory cache too
                 Log.d(TAG, "Cache cleared");
             } catch (Exception e) {
                 Log.e(TAG, "Error clearing cache", e);
             }
         });
     }
-
-    public void shutdown() {
-        cancelPrecaching();
-        executor.shutdown();
-        precacheExecutor.shutdown();
-        try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
-            }
-            if (!precacheExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                precacheExecutor.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executor.shutdownNow();
-            precacheExecutor.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,578 @@
+package com.example.kidsvideos;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores encoded thumbnails in a single append-only data file instead of one file per video.
+ *
+ * The data file starts with [int version][long generation], followed by records of the form
+ * [short keyLength][key][int dataLength][data]. An in-memory index maps cache keys to data
+ * offsets, so a lookup is one map probe followed by a copy out of a memory-mapped view of the
+ * file. Records appended since the view was made are read with a positional read instead, and
+ * the view is only remade once that tail grows past a few megabytes. The index is snapshotted to a side file every few writes; records appended after the
+ * last snapshot are recovered by scanning the tail of the data file. Removing or evicting an
+ * entry appends a tombstone, a record with a dataLength of -1 and no data, so that scan can't
+ * bring it back. Replaced and removed records stay in the data file until {@link #compact()}
+ * rewrites it under a new generation; a snapshot of any other generation is ignored.
+ *
+ * The index is kept in access order and its snapshot preserves that order, so it doubles as the
+ * LRU journal. The live size is tracked in memory; a write that takes it over the budget evicts
+ * the least recently used entries right away, without listing or stat-ing any files.
+ */
+class ThumbnailPackStore {
+    private static final String TAG = "ThumbnailPackStore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INDEX_VERSION = 2;
+    private static final int PACK_VERSION = 1;
+    private static final int DATA_HEADER_SIZE = 4 + 8; // version + generation
+    private static final int RECORD_HEADER_SIZE = 2 + 4; // key length + data length
+    private static final int TOMBSTONE = -1; // Data length of a record that removes its key
+    private static final int INDEX_FLUSH_INTERVAL = 32; // Snapshot the index every 32 appends
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024; // Don't bother compacting under 1MB of waste
+    private static final int EVICTION_TARGET_PERCENT = 90; // Evict a little extra so every write doesn't evict
+    private static final int DISK_SLACK_PERCENT = 25; // Superseded records allowed on top of the budget
+    private static final long REMAP_STEP_BYTES = 4 * 1024 * 1024; // Unmapped tail read directly up to this
+
+    private static class Entry {
+        final long offset; // Offset of the encoded data, past the record header
+        final int length;
+        final int recordSize;
+
+        Entry(long offset, int length, int recordSize) {
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private RandomAccessFile data;
+    private MappedByteBuffer mapped;
+    private long dataLength;
+    private long generation; // Of the open data file, changed by every compaction
+    private volatile long liveBytes; // Written under the lock, readable without it
+    private long maxBytes = Long.MAX_VALUE;
+    private int unflushedWrites;
+    private boolean accessedSinceFlush; // Reads reorder the index, persisted by the next flush
+    private volatile int evictions;
+
+    ThumbnailPackStore(File directory, String name) {
+        dataFile = new File(directory, name + ".pack");
+        indexFile = new File(directory, name + ".idx");
+    }
+
+    // Includes the temporary files compaction and index writes replace them from
+    boolean owns(File file) {
+        String path = file.getPath();
+        return path.equals(dataFile.getPath()) || path.equals(indexFile.getPath())
+                || path.equals(dataFile.getPath() + ".tmp") || path.equals(indexFile.getPath() + ".tmp");
+    }
+
+    synchronized byte[] get(String key) {
+        try {
+            ensureOpen();
+            Entry entry = index.get(key); // Moves the entry to the most recently used end
+            if (entry == null) {
+                return null;
+            }
+            accessedSinceFlush = true;
+            // Every mapping stays alive until it is garbage collected, so make few of them
+            if (mapped == null || dataLength - mapped.capacity() >= REMAP_STEP_BYTES) {
+                remap();
+            }
+            byte[] bytes = new byte[entry.length];
+            if (entry.offset + entry.length <= mapped.capacity()) {
+                mapped.position((int) entry.offset);
+                mapped.get(bytes);
+            } else {
+                readAt(bytes, entry.offset); // Appended since the mapping was made
+            }
+            return bytes;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read packed thumbnail", e);
+            recoverFrom(e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read packed thumbnail", e);
+            return null;
+        }
+    }
+
+    synchronized boolean contains(String key) {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open thumbnail pack", e);
+            return false;
+        }
+        return index.containsKey(key);
+    }
+
+    synchronized void put(String key, byte[] bytes) {
+        try {
+            ensureOpen();
+            byte[] keyBytes = key.getBytes(UTF_8);
+            int recordSize = RECORD_HEADER_SIZE + keyBytes.length + bytes.length;
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putShort((short) keyBytes.length);
+            record.put(keyBytes);
+            record.putInt(bytes.length);
+            record.put(bytes);
+
+            data.seek(dataLength);
+            data.write(record.array());
+
+            // Re-insert so the entry moves to the most recently used end of the index
+            Entry previous = index.remove(key);
+            if (previous != null) {
+                liveBytes -= previous.recordSize;
+            }
+            index.put(key, new Entry(dataLength + RECORD_HEADER_SIZE + keyBytes.length, bytes.length, recordSize));
+            liveBytes += recordSize;
+            dataLength += recordSize;
+            if (liveBytes > maxBytes) {
+                evict(maxBytes / 100 * EVICTION_TARGET_PERCENT);
+            }
+
+            if (++unflushedWrites >= INDEX_FLUSH_INTERVAL) {
+                writeIndex();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append thumbnail to pack", e);
+            recoverFrom(e);
+        }
+    }
+
+    // Appends only if the record fits in the budget without evicting anything, e.g. for
+    // speculative writes that shouldn't push out thumbnails that were actually shown
+    synchronized boolean putIfRoom(String key, byte[] bytes) {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open thumbnail pack", e);
+            return false;
+        }
+        int recordSize = RECORD_HEADER_SIZE + key.getBytes(UTF_8).length + bytes.length;
+        if (liveBytes + recordSize > maxBytes) {
+            return false;
+        }
+        put(key, bytes);
+        return true;
+    }
+
+    synchronized void remove(String key) {
+        try {
+            ensureOpen();
+            Entry entry = index.remove(key);
+            if (entry != null) {
+                liveBytes -= entry.recordSize;
+                appendTombstones(Collections.singletonList(key));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to remove thumbnail from pack", e);
+            recoverFrom(e);
+        }
+    }
+
+    // True when superseded records take up more room than live ones, or push the file well past
+    // the budget
+    synchronized boolean needsCompaction() {
+        long wasted = dataLength - DATA_HEADER_SIZE - liveBytes;
+        long diskLimit = maxBytes == Long.MAX_VALUE ? Long.MAX_VALUE : maxBytes / 100 * (100 + DISK_SLACK_PERCENT);
+        return wasted >= MIN_COMPACTION_BYTES && (wasted > liveBytes || dataLength > diskLimit);
+    }
+
+    // Rewrites the data file with only live records, reclaiming space from superseded ones
+    synchronized void compact() {
+        if (data == null) {
+            return;
+        }
+        File tempFile = new File(dataFile.getPath() + ".tmp");
+        LinkedHashMap<String, Entry> compacted = new LinkedHashMap<>();
+        long compactedGeneration = generation + 1;
+        long position = DATA_HEADER_SIZE;
+        try {
+            if (mapped == null || mapped.capacity() < dataLength) {
+                remap();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(PACK_VERSION);
+                out.writeLong(compactedGeneration);
+                byte[] buffer = new byte[8192];
+                for (Map.Entry<String, Entry> item : index.entrySet()) {
+                    Entry entry = item.getValue();
+                    long recordStart = entry.offset + entry.length - entry.recordSize;
+                    int remaining = entry.recordSize;
+                    mapped.position((int) recordStart);
+                    while (remaining > 0) {
+                        int chunk = Math.min(remaining, buffer.length);
+                        mapped.get(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    long newOffset = position + (entry.offset - recordStart);
+                    compacted.put(item.getKey(), new Entry(newOffset, entry.length, entry.recordSize));
+                    position += entry.recordSize;
+                }
+            }
+
+            closeData();
+            if (!tempFile.renameTo(dataFile)) {
+                throw new IOException("Could not replace " + dataFile.getName());
+            }
+            Log.d(TAG, "Compacted thumbnail pack from " + (dataLength / 1024) + "KB to " + (position / 1024) + "KB");
+            index.clear();
+            index.putAll(compacted);
+            data = new RandomAccessFile(dataFile, "rw");
+            // A crash before the snapshot below leaves the old one, which no longer matches
+            generation = compactedGeneration;
+            dataLength = position;
+            liveBytes = position - DATA_HEADER_SIZE;
+            writeIndex();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to compact thumbnail pack", e);
+            tempFile.delete();
+            if (e instanceof IOException) {
+                recoverFrom((IOException) e);
+            }
+            if (data == null) {
+                // The old data file is closed and may be gone, start over from whatever is on disk
+                index.clear();
+                liveBytes = 0;
+            }
+        }
+    }
+
+    // Sets the budget for live data, evicting least recently used entries right away if over it
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open thumbnail pack", e);
+            return;
+        }
+        if (liveBytes > maxBytes) {
+            try {
+                evict(maxBytes / 100 * EVICTION_TARGET_PERCENT);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to evict from thumbnail pack", e);
+                recoverFrom(e);
+            }
+        }
+    }
+
+    // Drops the least recently used entries until live data fits in targetBytes
+    private void evict(long targetBytes) throws IOException {
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        List<String> removed = new ArrayList<>();
+        while (liveBytes > targetBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            liveBytes -= item.getValue().recordSize;
+            removed.add(item.getKey());
+            iterator.remove();
+        }
+        if (!removed.isEmpty()) {
+            Log.d(TAG, "Evicted " + removed.size() + " thumbnails, " + (liveBytes / 1024) + "KB live");
+            evictions += removed.size();
+            appendTombstones(removed);
+        }
+    }
+
+    // Writes one tombstone per key in a single append, so a scan after a crash drops them too
+    private void appendTombstones(List<String> keys) throws IOException {
+        ByteArrayOutputStream tombstones = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(tombstones);
+        for (String key : keys) {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            out.writeShort(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(TOMBSTONE);
+        }
+        data.seek(dataLength);
+        data.write(tombstones.toByteArray());
+        dataLength += tombstones.size();
+        unflushedWrites += keys.size();
+    }
+
+    int getEvictionCount() {
+        return evictions;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    // Live bytes that can still be added before a write evicts anything
+    synchronized long getRoomBytes() {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open thumbnail pack", e);
+            return 0;
+        }
+        return Math.max(0, maxBytes - liveBytes);
+    }
+
+    // Average size of a live record, 0 while the pack is empty
+    synchronized long getAverageRecordBytes() {
+        return index.isEmpty() ? 0 : liveBytes / index.size();
+    }
+
+    // Stored bytes per owner, counting every entry keyed owner + "_" + anything, e.g. all variants
+    // of one video. Walks the index so no entry's recency for eviction changes.
+    synchronized Map<String, Long> getBytesByOwner(Set<String> owners) {
+        HashMap<String, Long> bytes = new HashMap<>();
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open thumbnail pack", e);
+            return bytes;
+        }
+        for (Map.Entry<String, Entry> entry : index.entrySet()) {
+            String key = entry.getKey();
+            int split = key.lastIndexOf('_');
+            String owner = split > 0 ? key.substring(0, split) : key;
+            if (owners.contains(owner)) {
+                Long sum = bytes.get(owner);
+                bytes.put(owner, (sum != null ? sum : 0L) + entry.getValue().length);
+            }
+        }
+        return bytes;
+    }
+
+    synchronized void flush() {
+        if (data != null && (unflushedWrites > 0 || accessedSinceFlush)) {
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write thumbnail pack index", e);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        closeData();
+        index.clear();
+        dataLength = 0;
+        liveBytes = 0;
+        unflushedWrites = 0;
+        accessedSinceFlush = false;
+        dataFile.delete();
+        indexFile.delete();
+        // Left behind only by a write that never finished, nothing is writing them under the lock
+        new File(dataFile.getPath() + ".tmp").delete();
+        new File(indexFile.getPath() + ".tmp").delete();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (data != null) {
+            return;
+        }
+        data = new RandomAccessFile(dataFile, "rw");
+        try {
+            generation = readHeader();
+            dataLength = data.length();
+            long indexedLength = readIndex();
+            if (indexedLength > dataLength) {
+                // Index describes data that is no longer there, rebuild it from the data file
+                index.clear();
+                liveBytes = 0;
+                indexedLength = 0;
+            }
+            indexedLength = Math.max(indexedLength, DATA_HEADER_SIZE);
+            if (indexedLength < dataLength) {
+                scanRecords(indexedLength);
+            }
+        } catch (IOException e) {
+            // Half opened, the next call starts over
+            closeData();
+            index.clear();
+            liveBytes = 0;
+            throw e;
+        }
+    }
+
+    // An interrupt during a channel operation closes the file for good, and every later read and
+    // write would fail with it. Saves what the index knows and lets the next call reopen the file.
+    private void recoverFrom(IOException e) {
+        if (!(e instanceof ClosedChannelException) || data == null) {
+            return;
+        }
+        Log.w(TAG, "Thumbnail pack was closed under a read or write, reopening");
+        try {
+            writeIndex();
+        } catch (IOException indexError) {
+            Log.w(TAG, "Failed to save thumbnail pack index before reopening", indexError);
+        }
+        closeData();
+        index.clear();
+        liveBytes = 0;
+    }
+
+    // Returns the data file's generation, starting the file over if it is new or has no header,
+    // as packs written before the header existed don't
+    private long readHeader() throws IOException {
+        if (data.length() >= DATA_HEADER_SIZE) {
+            data.seek(0);
+            if (data.readInt() == PACK_VERSION) {
+                return data.readLong();
+            }
+            Log.w(TAG, "Thumbnail pack has an unknown format, starting over");
+        }
+        // Distinct from any generation a leftover index could carry
+        long fresh = System.currentTimeMillis();
+        data.setLength(0);
+        data.seek(0);
+        data.writeInt(PACK_VERSION);
+        data.writeLong(fresh);
+        return fresh;
+    }
+
+    // Loads the index snapshot, returning how much of the data file it covers. A snapshot from
+    // another generation describes a different data file, e.g. one compaction replaced before
+    // the new snapshot was written, and is ignored.
+    private long readIndex() {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION || in.readLong() != generation) {
+                return 0;
+            }
+            long coveredLength = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readInt(), in.readInt());
+                index.put(key, entry);
+                liveBytes += entry.recordSize;
+            }
+            return coveredLength;
+        } catch (IOException e) {
+            Log.w(TAG, "Thumbnail pack index unreadable, rescanning", e);
+            index.clear();
+            liveBytes = 0;
+            return 0;
+        }
+    }
+
+    // Indexes records appended after the last snapshot, applying tombstones and truncating a
+    // partially written tail
+    private void scanRecords(long from) throws IOException {
+        remap();
+        long position = from;
+        int recovered = 0;
+        while (position + RECORD_HEADER_SIZE <= dataLength) {
+            mapped.position((int) position);
+            int keyLength = mapped.getShort() & 0xffff;
+            if (position + RECORD_HEADER_SIZE + keyLength > dataLength) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            mapped.get(keyBytes);
+            int length = mapped.getInt();
+            boolean tombstone = length == TOMBSTONE;
+            int recordSize = RECORD_HEADER_SIZE + keyLength + (tombstone ? 0 : length);
+            if ((length < 0 && !tombstone) || position + recordSize > dataLength) {
+                break;
+            }
+            String key = new String(keyBytes, UTF_8);
+            Entry previous = index.remove(key);
+            if (previous != null) {
+                liveBytes -= previous.recordSize;
+            }
+            if (!tombstone) {
+                index.put(key, new Entry(position + RECORD_HEADER_SIZE + keyLength, length, recordSize));
+                liveBytes += recordSize;
+            }
+            position += recordSize;
+            recovered++;
+        }
+        if (position < dataLength) {
+            Log.w(TAG, "Truncating incomplete record at end of thumbnail pack");
+            mapped = null;
+            data.setLength(position);
+            dataLength = position;
+        }
+        if (recovered > 0) {
+            unflushedWrites += recovered;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(generation);
+            out.writeLong(dataLength);
+            out.writeInt(index.size());
+            for (Map.Entry<String, Entry> item : index.entrySet()) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                out.writeInt(entry.recordSize);
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Could not replace " + indexFile.getName());
+        }
+        unflushedWrites = 0;
+        accessedSinceFlush = false;
+    }
+
+    private void readAt(byte[] bytes, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        FileChannel channel = data.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Thumbnail pack ends inside a record");
+            }
+        }
+    }
+
+    private void remap() throws IOException {
+        mapped = data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataLength);
+    }
+
+    private void closeData() {
+        mapped = null;
+        if (data != null) {
+            try {
+                data.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close thumbnail pack", e);
+            }
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.kidsvideos;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Warms the thumbnail and metadata caches for the rows about to scroll into view.
+ *
+ * Tracks scroll direction and speed and keeps prefetch requests open for the next few rows
+ * ahead of the viewport, looking further ahead the faster the grid moves. Requests run at
+ * prefetch priority, so they only use threads that visible rows leave idle, and they are all
+ * cancelled when the direction reverses or the data set changes.
+ */
+class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+    private static final int MIN_ROWS_AHEAD = 2;
+    private static final int MAX_ROWS_AHEAD = 10;
+    private static final long LOOKAHEAD_MS = 600; // Cover where the grid will be this far in the future
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    private final Context context;
+    private final GridLayoutManager layoutManager;
+    private final VideoAdapter adapter;
+    private final ThumbnailCache thumbnailCache;
+    // Open prefetch requests by adapter position
+    private final Map<Integer, ThumbnailCache.Request[]> requests = new LinkedHashMap<>();
+
+    private int direction; // 1 scrolling down, -1 scrolling up, 0 not yet known
+    private float velocity; // Pixels per millisecond, smoothed
+    private long lastScrollTime;
+
+    ThumbnailPrefetcher(Context context, GridLayoutManager layoutManager, VideoAdapter adapter) {
+        this.context = context;
+        this.layoutManager = layoutManager;
+        this.adapter = adapter;
+        this.thumbnailCache = ThumbnailCache.getInstance(context);
+
+        // Positions no longer point at the same videos after a reload or re-sort
+        adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                cancelAll();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                cancelAll();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                cancelAll();
+            }
+
+            @Override
+            public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                cancelAll();
+            }
+        });
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+        int newDirection = dy > 0 ? 1 : -1;
+        if (newDirection != direction) {
+            // Everything queued lies the other way now
+            cancelAll();
+            direction = newDirection;
+            velocity = 0;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long elapsed = Math.max(1, now - lastScrollTime);
+        lastScrollTime = now;
+        if (elapsed < 100) {
+            float instant = Math.abs(dy) / (float) elapsed;
+            velocity += (instant - velocity) * VELOCITY_SMOOTHING;
+        }
+
+        prefetch(recyclerView);
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            velocity = 0;
+        }
+    }
+
+    private void prefetch(RecyclerView recyclerView) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        int itemCount = adapter.getItemCount();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION || itemCount == 0) {
+            return;
+        }
+
+        int spanCount = layoutManager.getSpanCount();
+        int rowsAhead = rowsAhead(recyclerView);
+        int start;
+        int end;
+        if (direction > 0) {
+            start = last + 1;
+            end = Math.min(itemCount - 1, last + rowsAhead * spanCount);
+        } else {
+            start = Math.max(0, first - rowsAhead * spanCount);
+            end = first - 1;
+        }
+
+        // Drop requests that have scrolled into view (binding took over) or fallen behind
+        Iterator<Map.Entry<Integer, ThumbnailCache.Request[]>> iterator = requests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, ThumbnailCache.Request[]> entry = iterator.next();
+            int position = entry.getKey();
+            if (position < start || position > end) {
+                cancel(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        for (int position = start; position <= end; position++) {
+            if (thumbnailCache.isBacklogged()) {
+                break; // The next scroll event tops up once the decoders catch up
+            }
+            if (!requests.containsKey(position)) {
+                requests.put(position, request(adapter.getItem(position)));
+            }
+        }
+    }
+
+    // More rows ahead the faster we go, based on how far the grid moves in LOOKAHEAD_MS
+    private int rowsAhead(RecyclerView recyclerView) {
+        View child = recyclerView.getChildAt(0);
+        int rowHeight = child != null ? Math.max(1, child.getHeight()) : 1;
+        int rows = MIN_ROWS_AHEAD + (int) (velocity * LOOKAHEAD_MS / rowHeight);
+        return Math.min(MAX_ROWS_AHEAD, rows);
+    }
+
+    private ThumbnailCache.Request[] request(VideoEntry video) {
+        ThumbnailCache.Request thumbnail = thumbnailCache.getThumbnail(context, video,
+                adapter.getThumbnailWidth(), adapter.getThumbnailHeight(),
+                ThumbnailCache.PRIORITY_PREFETCH, thumbnailCache::releaseThumbnail); // Only warms memory
+        ThumbnailCache.Request metadata = ThumbnailCache.Request.NONE;
+        if (!video.isDurationLoaded() && thumbnailCache.getCachedMetadata(video) == null) {
+            metadata = thumbnailCache.getMetadata(context, video,
+                    ThumbnailCache.PRIORITY_PREFETCH, result -> { });
+        }
+        return new ThumbnailCache.Request[] {thumbnail, metadata};
+    }
+
+    void cancelAll() {
+        for (ThumbnailCache.Request[] pending : requests.values()) {
+            cancel(pending);
+        }
+        requests.clear();
+    }
+
+    private static void cancel(ThumbnailCache.Request[] pending) {
+        for (ThumbnailCache.Request request : pending) {
+            request.cancel();
+        }
+    }
+}
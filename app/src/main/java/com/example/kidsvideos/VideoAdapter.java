@@ -1,41 +1,69 @@
 package com.example.kidsvideos;
 
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
-import android.net.Uri;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.StrictMode;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.File;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 public class VideoAdapter extends RecyclerView.Adapter<VideoAdapter.VideoViewHolder> {
+    private static final Object PAYLOAD_WATCHED = new Object(); // Only the watched bar changed
+    private static final int WATCHED_MAX = 1000; // Progress bar resolution, matches item_video.xml
 
-    private List<File> videoFiles;
+    private LibraryStore videos;
     private OnVideoClickListener listener;
-    private ExecutorService executorService;
-    private Handler mainHandler;
+    // Debug builds only: binding may not touch the disk or hash, violations are logged
+    private StrictMode.ThreadPolicy bindPolicy;
+    // Thumbnail view size, estimated from the grid until a view has been laid out
+    private int thumbnailWidth;
+    private int thumbnailHeight;
 
     public interface OnVideoClickListener {
-        void onVideoClick(File videoFile);
+        void onVideoClick(VideoEntry video);
     }
 
-    public VideoAdapter(List<File> videoFiles, OnVideoClickListener listener) {
-        this.videoFiles = videoFiles;
+    public VideoAdapter(LibraryStore videos, OnVideoClickListener listener) {
+        this.videos = videos;
         this.listener = listener;
-        this.executorService = Executors.newFixedThreadPool(2); // Limit background threads
-        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Callers notify the change themselves, e.g. with a DiffUtil result
+    void setVideos(LibraryStore videos) {
+        this.videos = videos;
+    }
+
+    // Redraws only the watched bars, e.g. after returning from the player
+    void refreshWatchedProgress() {
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_WATCHED);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        if (bindPolicy == null
+                && (recyclerView.getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            bindPolicy = new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectCustomSlowCalls()
+                    .penaltyLog()
+                    .build();
+        }
+    }
+
+    // Replaces the debug policy, e.g. so a test can collect violations instead of logging them
+    void setBindPolicy(StrictMode.ThreadPolicy policy) {
+        bindPolicy = policy;
     }
 
     @NonNull
@@ -43,18 +71,82 @@ public class VideoAdapter extends RecyclerView.Adapter<VideoAdapter.VideoViewHol
     public VideoViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.item_video, parent, false);
-        return new VideoViewHolder(view);
+        VideoViewHolder holder = new VideoViewHolder(view);
+        if (thumbnailWidth == 0) {
+            estimateThumbnailSize(parent, holder.ivVideoThumbnail);
+        }
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull VideoViewHolder holder, int position) {
-        File videoFile = videoFiles.get(position);
-        holder.bind(videoFile);
+        VideoEntry video = videos.get(position);
+        runUnderBindPolicy(() -> holder.bind(video));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull VideoViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && allWatched(payloads)) {
+            VideoEntry video = videos.get(position);
+            runUnderBindPolicy(() -> holder.bindWatchedProgress(video));
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    // Every bind path runs here, so the policy sees all of them
+    void runUnderBindPolicy(Runnable bind) {
+        if (bindPolicy == null) {
+            bind.run();
+            return;
+        }
+        StrictMode.ThreadPolicy previous = StrictMode.getThreadPolicy();
+        StrictMode.setThreadPolicy(bindPolicy);
+        try {
+            bind.run();
+        } finally {
+            StrictMode.setThreadPolicy(previous);
+        }
+    }
+
+    private static boolean allWatched(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_WATCHED) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int getItemCount() {
-        return videoFiles.size();
+        return videos.size();
+    }
+
+    VideoEntry getItem(int position) {
+        return videos.get(position);
+    }
+
+    // Size prefetched thumbnails should be requested at, matching what bound rows ask for
+    int getThumbnailWidth() {
+        return thumbnailWidth;
+    }
+
+    int getThumbnailHeight() {
+        return thumbnailHeight;
+    }
+
+    // First rows are bound before layout, so start from the column width and the fixed view height
+    private void estimateThumbnailSize(ViewGroup parent, ImageView imageView) {
+        int spanCount = 1;
+        if (parent instanceof RecyclerView
+                && ((RecyclerView) parent).getLayoutManager() instanceof GridLayoutManager) {
+            spanCount = ((GridLayoutManager) ((RecyclerView) parent).getLayoutManager()).getSpanCount();
+        }
+        int gridWidth = parent.getWidth() > 0
+                ? parent.getWidth() : parent.getResources().getDisplayMetrics().widthPixels;
+        thumbnailWidth = gridWidth / spanCount;
+        thumbnailHeight = Math.max(0, imageView.getLayoutParams().height);
     }
 
     @Override
@@ -62,139 +154,145 @@ public class VideoAdapter extends RecyclerView.Adapter<VideoAdapter.VideoViewHol
         super.onViewRecycled(holder);
         // Cancel any pending operations when view is recycled
         holder.cancelPendingOperations();
-    }
-
-    public void cleanup() {
-        if (executorService != null) {
-            executorService.shutdown();
-        }
+        holder.showPlaceholder();
     }
 
     class VideoViewHolder extends RecyclerView.ViewHolder {
         private ImageView ivVideoThumbnail;
         private TextView tvVideoName;
         private TextView tvVideoDuration;
-        private Runnable pendingDurationTask;
-        private boolean isRecycled = false;
+        private ProgressBar pbWatched;
+        private VideoEntry boundVideo; // Results for any other video are stale and dropped
+        private ThumbnailCache.Request thumbnailRequest;
+        private ThumbnailCache.Request durationRequest;
+        private Bitmap shownThumbnail; // Held from the cache until the row shows something else
 
         public VideoViewHolder(@NonNull View itemView) {
             super(itemView);
             ivVideoThumbnail = itemView.findViewById(R.id.iv_video_thumbnail);
             tvVideoName = itemView.findViewById(R.id.tv_video_name);
             tvVideoDuration = itemView.findViewById(R.id.tv_video_duration);
+            pbWatched = itemView.findViewById(R.id.pb_watched);
 
             itemView.setOnClickListener(v -> {
                 int position = getAdapterPosition();
                 if (position != RecyclerView.NO_POSITION && listener != null) {
-                    listener.onVideoClick(videoFiles.get(position));
+                    listener.onVideoClick(videos.get(position));
                 }
             });
         }
 
-        public void bind(File videoFile) {
-            isRecycled = false;
+        public void bind(VideoEntry video) {
+            // Whatever this holder showed before is no longer wanted
+            cancelPendingOperations();
+            boundVideo = video;
 
-            // Set video name immediately
-            String fileName = videoFile.getName();
-            tvVideoName.setText(fileName);
+            // Set video name immediately, captured when the folder was scanned
+            tvVideoName.setText(video.displayName);
 
             // Show loading state for duration
             tvVideoDuration.setText("Loading...");
 
             // Load video duration asynchronously
-            loadVideoDurationAsync(videoFile);
+            loadVideoDurationAsync(video);
+
+            bindWatchedProgress(video);
 
             // Load video thumbnail asynchronously
-            loadVideoThumbnail(videoFile, ivVideoThumbnail);
+            loadVideoThumbnail(video, ivVideoThumbnail);
         }
 
-        private void loadVideoDurationAsync(File videoFile) {
-            // Cancel any previous duration loading task
-            if (pendingDurationTask != null) {
-                mainHandler.removeCallbacks(pendingDurationTask);
+        // Memory only: every saved position was read in one go when the store was first used
+        void bindWatchedProgress(VideoEntry video) {
+            PositionStore.Position position = PositionStore.getInstance(itemView.getContext()).get(video.location);
+            if (position == null || position.positionMs <= 0) {
+                pbWatched.setVisibility(View.INVISIBLE);
+                return;
             }
+            pbWatched.setProgress((int) (position.watchedFraction() * WATCHED_MAX));
+            pbWatched.setVisibility(View.VISIBLE);
+        }
 
-            // Check if we have cached metadata first
-            String cachedDuration = ThumbnailCache.getInstance(itemView.getContext())
-                    .getCachedMetadata(videoFile, "duration");
-
-            if (cachedDuration != null) {
-                tvVideoDuration.setText("Duration: " + cachedDuration);
+        // Memory lookups only; anything missing is loaded on a background queue and delivered
+        // through a callback
+        private void loadVideoDurationAsync(VideoEntry video) {
+            // The entry remembers its duration once it has been loaded or restored
+            if (video.isDurationLoaded()) {
+                tvVideoDuration.setText("Duration: " + VideoMetadata.formatDuration(video.getDurationMs()));
                 return;
             }
 
-            // Create background task for duration calculation
-            pendingDurationTask = () -> {
-                if (isRecycled) return;
-
-                String duration = getVideoDuration(videoFile);
+            // Check if we have cached metadata first, held in memory once the store has loaded
+            ThumbnailCache thumbnailCache = ThumbnailCache.getInstance(itemView.getContext());
+            VideoMetadata cached = thumbnailCache.getCachedMetadata(video);
 
-                // Cache the duration for future use
-                ThumbnailCache.getInstance(itemView.getContext())
-                        .cacheMetadata(videoFile, "duration", duration);
+            if (cached != null) {
+                tvVideoDuration.setText("Duration: " + cached.formatDuration());
+                return;
+            }
 
-                // Update UI on main thread
-                mainHandler.post(() -> {
-                    if (!isRecycled) {
-                        tvVideoDuration.setText("Duration: " + duration);
+            // Probes the video once in the background, caching its metadata and thumbnail together
+            durationRequest = thumbnailCache.getMetadata(itemView.getContext(), video,
+                ThumbnailCache.PRIORITY_VISIBLE,
+                metadata -> {
+                    if (metadata != null && boundVideo == video) {
+                        tvVideoDuration.setText("Duration: " + metadata.formatDuration());
                     }
-                });
-            };
-
-            executorService.execute(pendingDurationTask);
+                }
+            );
         }
 
-        private void loadVideoThumbnail(File videoFile, ImageView imageView) {
-            // Set default placeholder
-            imageView.setImageResource(android.R.drawable.ic_media_play);
+        private void loadVideoThumbnail(VideoEntry video, ImageView imageView) {
+            showPlaceholder();
+
+            // Once laid out the view knows its exact size, later binds and prefetches use it
+            if (imageView.getWidth() > 0 && imageView.getHeight() > 0) {
+                thumbnailWidth = imageView.getWidth();
+                thumbnailHeight = imageView.getHeight();
+            }
 
-            // Use thumbnail cache for efficient loading
-            ThumbnailCache.getInstance(itemView.getContext()).getThumbnail(
+            // Use thumbnail cache for efficient loading, at the smallest size that fills the view
+            thumbnailRequest = ThumbnailCache.getInstance(itemView.getContext()).getThumbnail(
                 itemView.getContext(),
-                videoFile,
+                video,
+                thumbnailWidth,
+                thumbnailHeight,
+                ThumbnailCache.PRIORITY_VISIBLE,
                 thumbnail -> {
-                    if (thumbnail != null && !isRecycled) {
+                    if (thumbnail != null && boundVideo == video) {
                         imageView.setImageBitmap(thumbnail);
+                        releaseShownThumbnail(); // An early frame it replaces
+                        shownThumbnail = thumbnail;
+                    } else {
+                        ThumbnailCache.getInstance(itemView.getContext()).releaseThumbnail(thumbnail);
                     }
                 }
             );
         }
 
-        private String getVideoDuration(File videoFile) {
-            try {
-                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
-                // Check if it's a content URI or regular file path
-                String path = videoFile.getAbsolutePath();
-                if (path.startsWith("content://")) {
-                    retriever.setDataSource(itemView.getContext(), Uri.parse(path));
-                } else {
-                    retriever.setDataSource(path);
-                }
-
-                String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                retriever.release();
+        void showPlaceholder() {
+            ivVideoThumbnail.setImageResource(android.R.drawable.ic_media_play);
+            releaseShownThumbnail();
+        }
 
-                if (durationStr != null && !durationStr.isEmpty()) {
-                    long duration = Long.parseLong(durationStr);
-                    long minutes = TimeUnit.MILLISECONDS.toMinutes(duration);
-                    long seconds = TimeUnit.MILLISECONDS.toSeconds(duration) -
-                                  TimeUnit.MINUTES.toSeconds(minutes);
-                    return String.format("%02d:%02d", minutes, seconds);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                // Log the specific error for debugging
-                System.out.println("Error getting duration for: " + videoFile.getAbsolutePath() + " - " + e.getMessage());
+        // Once no view draws it, the cache may reuse the thumbnail's memory after evicting it
+        private void releaseShownThumbnail() {
+            if (shownThumbnail != null) {
+                ThumbnailCache.getInstance(itemView.getContext()).releaseThumbnail(shownThumbnail);
+                shownThumbnail = null;
             }
-            return "Unknown";
         }
 
         public void cancelPendingOperations() {
-            isRecycled = true;
-            if (pendingDurationTask != null) {
-                mainHandler.removeCallbacks(pendingDurationTask);
-                pendingDurationTask = null;
+            boundVideo = null;
+            // Drops queued work for this row so the pool moves on to rows that are still visible
+            if (thumbnailRequest != null) {
+                thumbnailRequest.cancel();
+                thumbnailRequest = null;
+            }
+            if (durationRequest != null) {
+                durationRequest.cancel();
+                durationRequest = null;
             }
         }
     }
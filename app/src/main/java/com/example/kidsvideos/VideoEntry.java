@@ -0,0 +1,171 @@
+package com.example.kidsvideos;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One video in the library, with everything the grid, caches and player need captured when
+ * the folder is scanned. Nothing here goes back to the file system or the document provider.
+ *
+ * All attributes are final except the duration, which is filled in once the video has been
+ * probed or restored from the library snapshot. Entries read from a {@link LibraryStore} are
+ * short-lived views of one row and write loaded durations back to it on the main thread, the
+ * only thread that adds rows and grows the store's columns.
+ */
+public final class VideoEntry {
+    public static final long DURATION_NOT_LOADED = Long.MIN_VALUE;
+
+    private static final String EXTRA_PATH = "video_path";
+    private static final String EXTRA_NAME = "video_name";
+    private static final String EXTRA_MODIFIED = "video_modified";
+    private static final String EXTRA_SIZE = "video_size";
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    public final String location; // Document URI for SAF videos, absolute path for local files
+    public final String displayName;
+    public final String mimeType; // Null if unknown
+    public final long sizeBytes;
+    public final long lastModified;
+    private final LibraryStore library; // Row owner the duration is written back to, or null
+    private final int row;
+    private volatile long durationMs = DURATION_NOT_LOADED;
+    private volatile String cacheKey;
+
+    public VideoEntry(String location, String displayName, String mimeType, long sizeBytes, long lastModified) {
+        this(location, displayName, mimeType, sizeBytes, lastModified, null, -1);
+    }
+
+    VideoEntry(String location, String displayName, String mimeType, long sizeBytes, long lastModified,
+               LibraryStore library, int row) {
+        this.location = location;
+        this.displayName = displayName;
+        this.mimeType = mimeType;
+        this.sizeBytes = sizeBytes;
+        this.lastModified = lastModified;
+        this.library = library;
+        this.row = row;
+        if (library != null) {
+            durationMs = library.getDurationMs(row);
+            cacheKey = library.getCacheKey(row);
+        }
+    }
+
+    static VideoEntry fromFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot >= 0
+                ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase()) : null;
+        return new VideoEntry(file.getAbsolutePath(), name, mimeType, file.length(), file.lastModified());
+    }
+
+    public boolean isContentUri() {
+        return location.startsWith("content://");
+    }
+
+    public Uri toUri() {
+        return isContentUri() ? Uri.parse(location) : Uri.fromFile(new File(location));
+    }
+
+    public boolean isDurationLoaded() {
+        return durationMs != DURATION_NOT_LOADED;
+    }
+
+    // VideoMetadata.UNKNOWN_DURATION once probed without success
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+        writeBack(() -> library.setDurationMs(row, durationMs));
+    }
+
+    // Scanning computes keys in the background, so entries reaching the UI should already have
+    // one. Hashing on the main thread is reported as a slow call to the debug StrictMode policy.
+    public String getCacheKey() {
+        String key = cacheKey;
+        if (key == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                StrictMode.noteSlowCall("Cache key hashed on the main thread");
+            }
+            key = generateCacheKey(location, lastModified);
+            cacheKey = key;
+            String hashed = key;
+            writeBack(() -> library.setCacheKey(row, hashed));
+        }
+        return key;
+    }
+
+    // Null if the key hasn't been computed yet
+    String peekCacheKey() {
+        return cacheKey;
+    }
+
+    // Replaces the location key, e.g. with a content fingerprint
+    void setCacheKey(String key) {
+        cacheKey = key;
+        writeBack(() -> library.setCacheKey(row, key));
+    }
+
+    // Durations and keys are loaded on the media lanes; the row is only written on the main thread
+    private void writeBack(Runnable write) {
+        if (library == null) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            write.run();
+        } else {
+            MAIN_HANDLER.post(write);
+        }
+    }
+
+    void putInto(Intent intent) {
+        intent.putExtra(EXTRA_PATH, location);
+        intent.putExtra(EXTRA_NAME, displayName);
+        intent.putExtra(EXTRA_MODIFIED, lastModified);
+        intent.putExtra(EXTRA_SIZE, sizeBytes);
+    }
+
+    // Null if the intent carries no video
+    static VideoEntry fromIntent(Intent intent) {
+        String location = intent.getStringExtra(EXTRA_PATH);
+        if (location == null) {
+            return null;
+        }
+        String name = intent.getStringExtra(EXTRA_NAME);
+        return new VideoEntry(location, name != null ? name : new File(location).getName(), null,
+                intent.getLongExtra(EXTRA_SIZE, 0), intent.getLongExtra(EXTRA_MODIFIED, 0));
+    }
+
+    static String generateCacheKey(String location, long lastModified) {
+        try {
+            // Use MD5 hash of file path + last modified time for cache key
+            String input = location + "_" + lastModified;
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return toHex(md.digest(input.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            // Fallback to simple hash if MD5 is not available
+            return String.valueOf((location + lastModified).hashCode());
+        }
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+}
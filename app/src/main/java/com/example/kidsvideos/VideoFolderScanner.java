@@ -0,0 +1,101 @@
+package com.example.kidsvideos;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the videos in a Storage Access Framework folder with a single child-documents query.
+ *
+ * DocumentFile answers every isFile(), getName() and lastModified() call with its own
+ * ContentResolver round trip. Here one cursor returns id, name, type, modification time and
+ * size for all children, captured in {@link VideoEntry}s so later sorting, binding and cache
+ * key generation never go back to the provider.
+ */
+final class VideoFolderScanner {
+    private static final String TAG = "VideoFolderScanner";
+
+    private static final String[] PROJECTION = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_SIZE
+    };
+
+    private static final String[] VIDEO_EXTENSIONS = {
+            ".mp4", ".avi", ".mkv", ".mov", ".wmv", ".flv", ".webm", ".m4v", ".3gp"
+    };
+
+    private VideoFolderScanner() {
+    }
+
+    // Appends the videos directly inside a folder of the tree to out and, if subfolderIds is not
+    // null, the document ids of its subfolders. Returns false if the query failed.
+    static boolean scan(Context context, Uri treeUri, String documentId, List<VideoEntry> out, List<String> subfolderIds) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        ContentResolver resolver = context.getContentResolver();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(childrenUri, PROJECTION, null, null, null);
+            if (cursor == null) {
+                return false;
+            }
+            int idColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+            int nameColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
+            int mimeColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_MIME_TYPE);
+            int modifiedColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            int sizeColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_SIZE);
+
+            List<VideoEntry> found = new ArrayList<>(Math.max(0, cursor.getCount()));
+            while (cursor.moveToNext()) {
+                String mimeType = cursor.getString(mimeColumn);
+                String name = cursor.getString(nameColumn);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                    if (subfolderIds != null && !isHidden(name)) {
+                        subfolderIds.add(cursor.getString(idColumn));
+                    }
+                    continue;
+                }
+                if (!isVideoName(name)) {
+                    continue;
+                }
+                Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(idColumn));
+                long lastModified = cursor.isNull(modifiedColumn) ? 0 : cursor.getLong(modifiedColumn);
+                long size = cursor.isNull(sizeColumn) ? 0 : cursor.getLong(sizeColumn);
+                found.add(new VideoEntry(documentUri.toString(), name, mimeType, size, lastModified));
+            }
+            out.addAll(found);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing " + treeUri, e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Dot folders hold thumbnails, trash and app data rather than videos
+    static boolean isHidden(String name) {
+        return name == null || name.startsWith(".");
+    }
+
+    static boolean isVideoName(String fileName) {
+        if (fileName == null) return false;
+        String name = fileName.toLowerCase();
+        for (String extension : VIDEO_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
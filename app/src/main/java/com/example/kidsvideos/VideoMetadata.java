@@ -0,0 +1,61 @@
+package com.example.kidsvideos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed metadata for one video, as persisted by {@link MetadataStore}.
+ * Fields that could not be read are zero, or UNKNOWN_DURATION for the duration.
+ */
+public final class VideoMetadata {
+    public static final long UNKNOWN_DURATION = -1;
+
+    public final long durationMs;
+    public final int width;
+    public final int height;
+    public final int rotation;
+    public final long sizeBytes;
+    public final int bitrate;
+
+    public VideoMetadata(long durationMs, int width, int height, int rotation, long sizeBytes, int bitrate) {
+        this.durationMs = durationMs;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.sizeBytes = sizeBytes;
+        this.bitrate = bitrate;
+    }
+
+    public String formatDuration() {
+        return formatDuration(durationMs);
+    }
+
+    public static String formatDuration(long durationMs) {
+        if (durationMs == UNKNOWN_DURATION) {
+            return "Unknown";
+        }
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(durationMs);
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(durationMs) -
+                      TimeUnit.MINUTES.toSeconds(minutes);
+        return String.format("%02d:%02d", minutes, seconds);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VideoMetadata)) return false;
+        VideoMetadata other = (VideoMetadata) o;
+        return durationMs == other.durationMs && width == other.width && height == other.height
+                && rotation == other.rotation && sizeBytes == other.sizeBytes && bitrate == other.bitrate;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (durationMs ^ (durationMs >>> 32));
+        result = 31 * result + width;
+        result = 31 * result + height;
+        result = 31 * result + rotation;
+        result = 31 * result + (int) (sizeBytes ^ (sizeBytes >>> 32));
+        result = 31 * result + bitrate;
+        return result;
+    }
+}
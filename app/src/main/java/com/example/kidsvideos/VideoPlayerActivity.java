@@ -2,9 +2,9 @@ package com.example.kidsvideos;
 
 import android.media.MediaPlayer;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
@@ -14,15 +14,13 @@ import android.widget.VideoView;
 import androidx.appcompat.app.AppCompatActivity;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 public class VideoPlayerActivity extends AppCompatActivity {
 
-    // Static map to store video positions across activity instances
-    private static final Map<String, Integer> videoPositions = new HashMap<>();
     private static final int RESUME_THRESHOLD = 5000; // Only resume if more than 5 seconds in
+    private static final long POSITION_SYNC_NANOS = 500000000L; // Between position reads from the player
+    private static final long POSITION_SAVE_INTERVAL_MS = 5000; // Resume point while the controls are hidden
+    private static final int TIME_TEXT_CAPACITY = 12; // Longest "MM:SS" an int of milliseconds can need
 
     private VideoView videoView;
     private ImageButton btnPlayPause;
@@ -31,18 +29,28 @@ public class VideoPlayerActivity extends AppCompatActivity {
     private TextView tvCurrentTime;
     private TextView tvDuration;
     private View controlsLayout;
+    private ScrubPreviewView scrubPreview;
 
     private Handler handler = new Handler();
     private boolean isPlaying = false;
     private boolean isUserSeeking = false;
-    private Runnable updateSeekBarRunnable;
+    // Time texts are formatted into these, TextView shows them without a String per update
+    private final char[] currentTimeText = new char[TIME_TEXT_CAPACITY];
+    private final char[] durationText = new char[TIME_TEXT_CAPACITY];
+    private int shownSecond = -1; // What tvCurrentTime shows, -1 before anything
+    private boolean playbackUiRunning;
+    private long syncFrameNanos; // Frame the position was last read from the player on, 0 to read next frame
+    private int syncPosition;
     private Runnable hideControlsRunnable;
     private String currentVideoPath;
+    private PositionStore positionStore; // Resume points that survive the process
+    private ThumbnailCache.Request frameSheetRequest;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_video_player);
+        positionStore = PositionStore.getInstance(this);
 
         initViews();
         setupVideoPlayer();
@@ -58,47 +66,49 @@ public class VideoPlayerActivity extends AppCompatActivity {
         tvCurrentTime = findViewById(R.id.tv_current_time);
         tvDuration = findViewById(R.id.tv_duration);
         controlsLayout = findViewById(R.id.controls_layout);
+        scrubPreview = findViewById(R.id.scrub_preview);
     }
 
     private void setupVideoPlayer() {
-        String videoPath = getIntent().getStringExtra("video_path");
-        if (videoPath != null) {
-            currentVideoPath = videoPath;
-            Uri videoUri;
-
-            // Check if it's a content URI or file path
-            if (videoPath.startsWith("content://")) {
-                videoUri = Uri.parse(videoPath);
-            } else {
-                File videoFile = new File(videoPath);
-                if (videoFile.exists()) {
-                    videoUri = Uri.fromFile(videoFile);
-                } else {
-                    return; // File doesn't exist
-                }
+        VideoEntry video = VideoEntry.fromIntent(getIntent());
+        if (video != null) {
+            currentVideoPath = video.location;
+
+            // Content URIs are opened by the player, local files must still be there
+            if (!video.isContentUri() && !new File(video.location).exists()) {
+                return; // File doesn't exist
             }
 
-            videoView.setVideoURI(videoUri);
+            videoView.setVideoURI(video.toUri());
+
+            // Scrub previews come from frames decoded up front, generated once per video
+            frameSheetRequest = ThumbnailCache.getInstance(this).getFrameSheet(this, video,
+                    sheet -> scrubPreview.setFrameSheet(sheet));
 
                 videoView.setOnPreparedListener(mediaPlayer -> {
                     int duration = videoView.getDuration();
                     seekBar.setMax(duration);
-                    tvDuration.setText(formatTime(duration));
-                    tvCurrentTime.setText("00:00");
-
-                    // Restore previous position if available
-                    Integer savedPosition = videoPositions.get(currentVideoPath);
-                    if (savedPosition != null && savedPosition > RESUME_THRESHOLD && savedPosition < duration - 5000) {
-                        videoView.seekTo(savedPosition);
-                        tvCurrentTime.setText(formatTime(savedPosition));
-                        seekBar.setProgress(savedPosition);
-                    }
+                    showDuration(duration);
+                    showCurrentTime(0);
+
+                    // Restore previous position if available; right after a process restart the
+                    // saved positions may still be loading
+                    positionStore.whenLoaded(() -> {
+                        PositionStore.Position saved = positionStore.get(currentVideoPath);
+                        int savedPosition = saved != null ? (int) saved.positionMs : 0;
+                        if (savedPosition > RESUME_THRESHOLD && savedPosition < duration - 5000) {
+                            videoView.seekTo(savedPosition);
+                            showCurrentTime(savedPosition);
+                            seekBar.setProgress(savedPosition);
+                            syncFrameNanos = 0;
+                        }
+                    });
 
                     // Auto-play
                     videoView.start();
                     isPlaying = true;
                     btnPlayPause.setImageResource(android.R.drawable.ic_media_pause);
-                    startSeekBarUpdate();
+                    updatePlaybackLoops();
 
                     // Start auto-hide timer when video begins
                     startControlsAutoHide();
@@ -108,12 +118,13 @@ public class VideoPlayerActivity extends AppCompatActivity {
                     isPlaying = false;
                     btnPlayPause.setImageResource(android.R.drawable.ic_media_play);
                     seekBar.setProgress(0);
-                    tvCurrentTime.setText("00:00");
-                    stopSeekBarUpdate();
+                    showCurrentTime(0);
+                    updatePlaybackLoops();
 
-                    // Clear saved position when video completes
+                    // Watched to the end: shown as complete in the grid, and too close to the end to resume
                     if (currentVideoPath != null) {
-                        videoPositions.remove(currentVideoPath);
+                        int duration = videoView.getDuration();
+                        positionStore.record(currentVideoPath, duration, duration);
                     }
                 });
 
@@ -135,8 +146,9 @@ public class VideoPlayerActivity extends AppCompatActivity {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (fromUser) {
-                    videoView.seekTo(progress);
-                    tvCurrentTime.setText(formatTime(progress));
+                    // Only the preview follows the thumb, the player seeks once on release
+                    showCurrentTime(progress);
+                    showScrubPreview(progress);
                     resetControlsAutoHide(); // Reset timer when user scrubs
                 }
             }
@@ -144,58 +156,134 @@ public class VideoPlayerActivity extends AppCompatActivity {
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
                 isUserSeeking = true;
+                showScrubPreview(seekBar.getProgress());
                 resetControlsAutoHide(); // Reset timer when user starts seeking
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 isUserSeeking = false;
+                scrubPreview.setVisibility(View.INVISIBLE);
                 int seekPosition = seekBar.getProgress();
                 videoView.seekTo(seekPosition);
-                tvCurrentTime.setText(formatTime(seekPosition));
+                showCurrentTime(seekPosition);
+                syncFrameNanos = 0; // Read the new position rather than extrapolate the old one
                 resetControlsAutoHide(); // Reset timer when user finishes seeking
             }
         });
     }
 
+    // Shows the nearest frame centred over the thumb, kept inside the screen
+    private void showScrubPreview(int progress) {
+        if (!scrubPreview.hasFrames()) {
+            return; // Still being generated, the time text is all there is for now
+        }
+        int max = Math.max(1, seekBar.getMax());
+        scrubPreview.showPosition(progress, max);
+        int track = seekBar.getWidth() - seekBar.getPaddingLeft() - seekBar.getPaddingRight();
+        float thumbX = controlsLayout.getLeft() + seekBar.getLeft() + seekBar.getPaddingLeft()
+                + track * (float) progress / max;
+        int parentWidth = ((View) scrubPreview.getParent()).getWidth();
+        float left = thumbX - scrubPreview.getWidth() / 2f;
+        scrubPreview.setTranslationX(Math.max(0, Math.min(parentWidth - scrubPreview.getWidth(), left)));
+        scrubPreview.setVisibility(View.VISIBLE);
+    }
+
     private void togglePlayPause() {
         if (isPlaying) {
             videoView.pause();
             btnPlayPause.setImageResource(android.R.drawable.ic_media_play);
-            stopSeekBarUpdate();
         } else {
             videoView.start();
             btnPlayPause.setImageResource(android.R.drawable.ic_media_pause);
-            startSeekBarUpdate();
         }
         isPlaying = !isPlaying;
+        updatePlaybackLoops();
         resetControlsAutoHide(); // Reset timer when user interacts with play/pause
     }
 
-    private void startSeekBarUpdate() {
-        updateSeekBarRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (!isUserSeeking && videoView.isPlaying()) {
-                    int currentPosition = videoView.getCurrentPosition();
-                    seekBar.setProgress(currentPosition);
-                    tvCurrentTime.setText(formatTime(currentPosition));
-
-                    // Save position every 5 seconds for crash recovery
-                    if (currentPosition % 5000 < 200) { // Within 200ms of a 5-second mark
-                        saveCurrentPosition();
-                    }
+    // Moves the seek bar and time once per display frame. The player is asked for its position
+    // a couple of times a second, which also becomes the resume point, and the frame time
+    // advances it in between.
+    private final Choreographer.FrameCallback playbackUiFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!playbackUiRunning) {
+                return;
+            }
+            if (!isUserSeeking) {
+                int position;
+                if (syncFrameNanos == 0 || frameTimeNanos - syncFrameNanos >= POSITION_SYNC_NANOS) {
+                    position = videoView.getCurrentPosition();
+                    syncPosition = position;
+                    syncFrameNanos = frameTimeNanos;
+                    recordPosition(position, seekBar.getMax());
+                } else {
+                    position = Math.min(seekBar.getMax(),
+                            syncPosition + (int) ((frameTimeNanos - syncFrameNanos) / 1000000));
                 }
-                handler.postDelayed(this, 100); // Update every 100ms for smooth animation
+                showProgress(position);
             }
-        };
-        handler.post(updateSeekBarRunnable);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    // Reads the position for the resume point while the UI loop isn't. Memory only, the store
+    // writes the latest one in batches.
+    private final Runnable savePositionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveCurrentPosition();
+            handler.postDelayed(this, POSITION_SAVE_INTERVAL_MS);
+        }
+    };
+
+    // The UI loop runs only while playing with the controls showing and records the resume
+    // point as it goes; while the controls are hidden a slower loop records it instead
+    private void updatePlaybackLoops() {
+        boolean runUi = isPlaying && controlsLayout.getVisibility() == View.VISIBLE;
+        if (runUi != playbackUiRunning) {
+            playbackUiRunning = runUi;
+            if (runUi) {
+                syncFrameNanos = 0;
+                Choreographer.getInstance().postFrameCallback(playbackUiFrame);
+            } else {
+                Choreographer.getInstance().removeFrameCallback(playbackUiFrame);
+            }
+        }
+        handler.removeCallbacks(savePositionRunnable);
+        if (isPlaying && !runUi) {
+            handler.postDelayed(savePositionRunnable, POSITION_SAVE_INTERVAL_MS);
+        }
     }
 
-    private void stopSeekBarUpdate() {
-        if (updateSeekBarRunnable != null) {
-            handler.removeCallbacks(updateSeekBarRunnable);
+    private void stopPlaybackLoops() {
+        playbackUiRunning = false;
+        Choreographer.getInstance().removeFrameCallback(playbackUiFrame);
+        handler.removeCallbacks(savePositionRunnable);
+    }
+
+    // The thumb only moves when it would move a pixel, the text only when the second changes
+    private void showProgress(int position) {
+        int track = seekBar.getWidth() - seekBar.getPaddingLeft() - seekBar.getPaddingRight();
+        int msPerPixel = track > 0 ? seekBar.getMax() / track : 0;
+        if (Math.abs(position - seekBar.getProgress()) >= Math.max(1, msPerPixel)) {
+            seekBar.setProgress(position);
+        }
+        showCurrentTime(position);
+    }
+
+    private void showCurrentTime(int milliseconds) {
+        int second = Math.max(0, milliseconds) / 1000;
+        if (second == shownSecond) {
+            return;
         }
+        shownSecond = second;
+        tvCurrentTime.setText(currentTimeText, 0, formatTime(milliseconds, currentTimeText));
+    }
+
+    private void showDuration(int milliseconds) {
+        tvDuration.setText(durationText, 0, formatTime(milliseconds, durationText));
     }
 
     private void toggleControlsVisibility() {
@@ -208,11 +296,14 @@ public class VideoPlayerActivity extends AppCompatActivity {
 
     private void showControls() {
         controlsLayout.setVisibility(View.VISIBLE);
+        updatePlaybackLoops();
         startControlsAutoHide();
     }
 
     private void hideControls() {
         controlsLayout.setVisibility(View.GONE);
+        scrubPreview.setVisibility(View.INVISIBLE);
+        updatePlaybackLoops(); // Nothing to keep up to date until they're shown again
         cancelControlsAutoHide();
     }
 
@@ -241,14 +332,18 @@ public class VideoPlayerActivity extends AppCompatActivity {
 
     private void saveCurrentPosition() {
         if (currentVideoPath != null && videoView != null) {
-            int currentPosition = videoView.getCurrentPosition();
-            int duration = videoView.getDuration();
+            recordPosition(videoView.getCurrentPosition(), videoView.getDuration());
+        }
+    }
 
-            // Don't save if video just started or almost finished
-            if (currentPosition > RESUME_THRESHOLD && currentPosition < duration - 5000) {
-                videoPositions.put(currentVideoPath, currentPosition);
-            }
+    private void recordPosition(int position, int duration) {
+        if (currentVideoPath == null || duration <= 0) {
+            return;
         }
+        // Back at the start, e.g. watched again from the beginning: an older resume point would be
+        // wrong, so it is cleared. Near the end the position is still saved for the grid's
+        // progress bar; resuming skips it.
+        positionStore.record(currentVideoPath, position > RESUME_THRESHOLD ? position : 0, duration);
     }
 
     private void hideSystemUI() {
@@ -258,11 +353,36 @@ public class VideoPlayerActivity extends AppCompatActivity {
                 View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
     }
 
-    private String formatTime(int milliseconds) {
-        long minutes = TimeUnit.MILLISECONDS.toMinutes(milliseconds);
-        long seconds = TimeUnit.MILLISECONDS.toSeconds(milliseconds) -
-                      TimeUnit.MINUTES.toSeconds(minutes);
-        return String.format("%02d:%02d", minutes, seconds);
+    // Writes "MM:SS" into out, with more minute digits if needed, and returns its length
+    private static int formatTime(int milliseconds, char[] out) {
+        int totalSeconds = Math.max(0, milliseconds) / 1000;
+        int minutes = totalSeconds / 60;
+        int seconds = totalSeconds % 60;
+        int digits = 2;
+        for (int rest = minutes / 100; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            out[i] = (char) ('0' + minutes % 10);
+            minutes /= 10;
+        }
+        out[digits] = ':';
+        out[digits + 1] = (char) ('0' + seconds / 10);
+        out[digits + 2] = (char) ('0' + seconds % 10);
+        return digits + 3;
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The frame sheet is delivered through the same per-frame queue as the grid's results
+        FrameDispatcher.getInstance().onOwnerStarted();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        FrameDispatcher.getInstance().onOwnerStopped();
     }
 
     @Override
@@ -273,17 +393,22 @@ public class VideoPlayerActivity extends AppCompatActivity {
             isPlaying = false;
             btnPlayPause.setImageResource(android.R.drawable.ic_media_play);
         }
-        stopSeekBarUpdate();
+        stopPlaybackLoops();
         cancelControlsAutoHide();
         saveCurrentPosition(); // Save position when pausing
+        positionStore.flush(); // The process may be killed once we're in the background
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        stopSeekBarUpdate();
+        stopPlaybackLoops();
         cancelControlsAutoHide();
         saveCurrentPosition(); // Save position when closing
+        positionStore.flush();
+        if (frameSheetRequest != null) {
+            frameSheetRequest.cancel();
+        }
         if (videoView != null) {
             videoView.stopPlayback();
         }